@@ -15,6 +15,8 @@
  */
 package l9g.app.ldap2moodle;
 
+import java.util.Arrays;
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -48,6 +50,123 @@ public class Config
   @Value("${moodle.trust-all-certificates}")
   private boolean moodleTrustAllCertificates;
 
+  @Value("${moodle.http.max-connections:16}")
+  private int moodleHttpMaxConnections;
+
+  @Value("${moodle.http.max-idle-time:30000}")
+  private long moodleHttpMaxIdleTime;
+
+  @Value("${moodle.http.connect-timeout:10000}")
+  private int moodleHttpConnectTimeout;
+
+  @Value("${moodle.http.response-timeout:600000}")
+  private long moodleHttpResponseTimeout;
+
+  @Value("${moodle.http.compress:true}")
+  private boolean moodleHttpCompress;
+
+  @Value("${moodle.http.http2:true}")
+  private boolean moodleHttpHttp2;
+
+  @Value("${moodle.http.tls-session-cache-size:64}")
+  private long moodleHttpTlsSessionCacheSize;
+
+  @Value("${moodle.http.tls-session-timeout:3600}")
+  private long moodleHttpTlsSessionTimeout;
+
+  @Value("${moodle.http.trust-store:}")
+  private String moodleHttpTrustStore;
+
+  @Value("${moodle.http.trust-store-password:}")
+  private String moodleHttpTrustStorePassword;
+
+  @Value("${moodle.http.trust-store-type:PKCS12}")
+  private String moodleHttpTrustStoreType;
+
+  @Value("${moodle.fetch.partitioned:false}")
+  private boolean moodleFetchPartitioned;
+
+  @Value("${moodle.fetch.slice-size:200}")
+  private int moodleFetchSliceSize;
+
+  @Value("${moodle.fetch.threads:4}")
+  private int moodleFetchThreads;
+
+  @Value("${moodle.fetch.retries:3}")
+  private int moodleFetchRetries;
+
+  @Value("${moodle.fetch.max-empty-slices:25}")
+  private int moodleFetchMaxEmptySlices;
+
+  @Value("${moodle.create.batch-size:200}")
+  private int moodleCreateBatchSize;
+
+  @Value("${moodle.update.batch-size:200}")
+  private int moodleUpdateBatchSize;
+
+  @Value("${moodle.update.max-delay:5000}")
+  private long moodleUpdateMaxDelay;
+
+  @Value("${moodle.deprovision.mode:none}")
+  private String moodleDeprovisionMode;
+
+  @Value("${moodle.deprovision.batch-size:200}")
+  private int moodleDeprovisionBatchSize;
+
+  @Value("${moodle.deprovision.protected-users:admin, guest}")
+  private String[] moodleDeprovisionProtectedUsers;
+
+  @Value("${moodle.deprovision.auth:}")
+  private String moodleDeprovisionAuth;
+
+  @Value("${moodle.multi-call.enabled:false}")
+  private boolean moodleMultiCallEnabled;
+
+  @Value("${moodle.async.enabled:false}")
+  private boolean moodleAsyncEnabled;
+
+  @Value("${moodle.async.max-in-flight:4}")
+  private int moodleAsyncMaxInFlight;
+
+  @Value("${moodle.async.timeout:60000}")
+  private long moodleAsyncTimeout;
+
+  @Value("${moodle.limiter.enabled:false}")
+  private boolean moodleLimiterEnabled;
+
+  @Value("${moodle.limiter.initial:2}")
+  private int moodleLimiterInitial;
+
+  @Value("${moodle.limiter.min:1}")
+  private int moodleLimiterMin;
+
+  @Value("${moodle.limiter.max:8}")
+  private int moodleLimiterMax;
+
+  @Value("${moodle.limiter.target-p95:2000}")
+  private long moodleLimiterTargetP95;
+
+  @Value("${moodle.limiter.decrease-factor:0.5}")
+  private double moodleLimiterDecreaseFactor;
+
+  @Value("${moodle.limiter.sample-size:20}")
+  private int moodleLimiterSampleSize;
+
+  @Value("${moodle.limiter.time-caps:}")
+  private String[] moodleLimiterTimeCaps;
+
+  @Value("${moodle.mirror.enabled:false}")
+  private boolean moodleMirrorEnabled;
+
+  @Value("${moodle.mirror.verify-interval:24}")
+  private long moodleMirrorVerifyInterval;
+
+  @Value("${moodle.delta-lookup.enabled:false}")
+  private boolean moodleDeltaLookupEnabled;
+
+  @Value("${moodle.delta-lookup.batch-size:100}")
+  private int moodleDeltaLookupBatchSize;
+
   @Value("${ldap.host.name}")
   private String ldapHostname;
 
@@ -78,6 +197,77 @@ public class Config
   @Value("${ldap.user.attributes}")
   private String[] ldapUserAttributeNames;
 
+  @Value("${ldap.compact.shared-attributes:o, ou, l, campus, department, institute, employeetype, title, academicTitle}")
+  private String[] ldapCompactSharedAttributes;
+
+  @Value("${ldap.pool.size:4}")
+  private int ldapPoolSize;
+
+  @Value("${ldap.pool.health-check-interval:60000}")
+  private long ldapPoolHealthCheckInterval;
+
+  @Value("${ldap.pool.max-connection-age:900000}")
+  private long ldapPoolMaxConnectionAge;
+
+  @Value("${ldap.paging.min-size:100}")
+  private int ldapPagingMinSize;
+
+  @Value("${ldap.paging.max-size:5000}")
+  private int ldapPagingMaxSize;
+
+  @Value("${ldap.paging.initial-size:1000}")
+  private int ldapPagingInitialSize;
+
+  @Value("${ldap.paging.target-latency:500}")
+  private long ldapPagingTargetLatency;
+
+  @Value("${ldap.paging.max-heap-usage:0.75}")
+  private double ldapPagingMaxHeapUsage;
+
+  /**
+   * separated by ;, a comma separated list would split the DNs
+   */
+  @Getter(AccessLevel.NONE)
+  @Value("${ldap.partition.base-dns:}")
+  private String ldapPartitionBaseDns;
+
+  /**
+   * separated by ;, filters may contain commas
+   */
+  @Getter(AccessLevel.NONE)
+  @Value("${ldap.partition.filter-shards:}")
+  private String ldapPartitionFilterShards;
+
+  @Value("${ldap.partition.threads:4}")
+  private int ldapPartitionThreads;
+
+  @Value("${ldap.uid-cache.max-age:24}")
+  private long ldapUidCacheMaxAge;
+
+  @Value("${ldap.delta.source:timestamp}")
+  private String ldapDeltaSource;
+
+  @Value("${ldap.delta.changelog-base-dn:cn=changelog}")
+  private String ldapDeltaChangelogBaseDn;
+
+  @Value("${ldap.delta.timestamp-overlap:60}")
+  private long ldapDeltaTimestampOverlap;
+
+  @Value("${uid-index.enabled:false}")
+  private boolean uidIndexEnabled;
+
+  @Value("${uid-index.initial-capacity:131072}")
+  private int uidIndexInitialCapacity;
+
+  @Value("${daemon.debounce:2000}")
+  private long daemonDebounce;
+
+  @Value("${daemon.max-delay:30000}")
+  private long daemonMaxDelay;
+
+  @Value("${daemon.reconnect-delay:10000}")
+  private long daemonReconnectDelay;
+
   @Value("${mail.enabled}")
   private boolean mailEnabled;
 
@@ -111,6 +301,32 @@ public class Config
   @Setter
   private boolean debug;
 
+  public String[] getLdapPartitionBaseDns()
+  {
+    return splitList(ldapPartitionBaseDns);
+  }
+
+  public String[] getLdapPartitionFilterShards()
+  {
+    return splitList(ldapPartitionFilterShards);
+  }
+
+  /**
+   * @return the non empty, trimmed entries of a ; separated list
+   */
+  private static String[] splitList(String value)
+  {
+    if (value == null)
+    {
+      return new String[0];
+    }
+
+    return Arrays.stream(value.split(";"))
+      .map(String::trim)
+      .filter(entry -> !entry.isEmpty())
+      .toArray(String[]::new);
+  }
+
   @Bean
   public Config configBean()
   {
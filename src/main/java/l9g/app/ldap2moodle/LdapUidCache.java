@@ -0,0 +1,237 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import l9g.app.ldap2moodle.state.UidIndex;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All user ids found in the LDAP directory, kept between runs so a delta
+ * sync does not need to scan the whole directory for delete detection.
+ *
+ * The uids are held in a HashSet and written to a text file, or, if a
+ * UidIndex is given, kept as flag in the memory mapped index.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class LdapUidCache
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(LdapUidCache.class);
+
+  private static final String UID_CACHE_FILENAME = "uids.cache";
+
+  private static final String HEADER_PREFIX = "# ";
+
+  public LdapUidCache(String prefix)
+  {
+    this(prefix, null);
+  }
+
+  public LdapUidCache(String prefix, UidIndex uidIndex)
+  {
+    this.uidIndex = uidIndex;
+    cacheFile = new File(VarDirectoryUtil.getVarDirectory(),
+      prefix + "-" + UID_CACHE_FILENAME);
+    LOGGER.debug("cacheFile={}", cacheFile.getAbsolutePath());
+  }
+
+  /**
+   * Loads the cached uids.
+   *
+   * @param maxAge maximum age of the cache in milliseconds
+   *
+   * @return false if there is no cache file or it is older than maxAge
+   */
+  public boolean load(long maxAge) throws IOException
+  {
+    uids.clear();
+    lastRefresh = 0;
+
+    if (uidIndex != null)
+    {
+      lastRefresh = uidIndex.getLdapRefresh();
+
+      if (lastRefresh == 0
+        || System.currentTimeMillis() - lastRefresh > maxAge)
+      {
+        LOGGER.info("uid index is outdated");
+        return false;
+      }
+
+      LOGGER.info("{} uids in index", uidIndex.count(UidIndex.FLAG_LDAP));
+      return true;
+    }
+
+    if (!cacheFile.exists() || !cacheFile.canRead())
+    {
+      LOGGER.info("no uid cache found");
+      return false;
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(
+      cacheFile.toPath(), StandardCharsets.UTF_8))
+    {
+      String line = reader.readLine();
+
+      if (line == null || !line.startsWith(HEADER_PREFIX))
+      {
+        LOGGER.warn("invalid uid cache header, ignoring {}",
+          cacheFile.getAbsolutePath());
+        return false;
+      }
+
+      lastRefresh = Long.parseLong(line.substring(HEADER_PREFIX.length())
+        .trim());
+
+      if (System.currentTimeMillis() - lastRefresh > maxAge)
+      {
+        LOGGER.info("uid cache is outdated");
+        return false;
+      }
+
+      while ((line = reader.readLine()) != null)
+      {
+        if (line.length() > 0)
+        {
+          uids.add(line);
+        }
+      }
+    }
+
+    LOGGER.info("{} uids loaded from cache", uids.size());
+    return true;
+  }
+
+  /**
+   * Starts a new uid universe, called before a complete scan of the
+   * directory.
+   */
+  public void refresh()
+  {
+    uids.clear();
+    lastRefresh = System.currentTimeMillis();
+
+    if (uidIndex != null)
+    {
+      uidIndex.clearFlag(UidIndex.FLAG_LDAP);
+      // invalid until the scan is saved
+      uidIndex.setLdapRefresh(0);
+    }
+  }
+
+  public void add(String uid)
+  {
+    if (uidIndex != null)
+    {
+      try
+      {
+        uidIndex.setFlag(uid, UidIndex.FLAG_LDAP);
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+    else
+    {
+      synchronized (uids)
+      {
+        uids.add(uid);
+      }
+    }
+  }
+
+  public void remove(String uid)
+  {
+    if (uidIndex != null)
+    {
+      uidIndex.clearFlag(uid, UidIndex.FLAG_LDAP);
+    }
+    else
+    {
+      synchronized (uids)
+      {
+        uids.remove(uid);
+      }
+    }
+  }
+
+  public boolean contains(String uid)
+  {
+    return (uidIndex != null)
+      ? uidIndex.hasFlag(uid, UidIndex.FLAG_LDAP) : uids.contains(uid);
+  }
+
+  public boolean isEmpty()
+  {
+    return (uidIndex != null)
+      ? uidIndex.count(UidIndex.FLAG_LDAP) == 0 : uids.isEmpty();
+  }
+
+  public void save() throws IOException
+  {
+    if (uidIndex != null)
+    {
+      uidIndex.setLdapRefresh(lastRefresh);
+      uidIndex.force();
+      return;
+    }
+
+    LOGGER.info("Writing {} uids to {}", uids.size(),
+      cacheFile.getAbsolutePath());
+
+    File tmpFile = new File(cacheFile.getParentFile(),
+      cacheFile.getName() + ".tmp");
+
+    try (BufferedWriter writer = Files.newBufferedWriter(
+      tmpFile.toPath(), StandardCharsets.UTF_8))
+    {
+      writer.write(HEADER_PREFIX + lastRefresh);
+      writer.newLine();
+
+      for (String uid : uids)
+      {
+        writer.write(uid);
+        writer.newLine();
+      }
+    }
+
+    Files.move(tmpFile.toPath(), cacheFile.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private final File cacheFile;
+
+  private final UidIndex uidIndex;
+
+  private final Set<String> uids = new HashSet<>();
+
+  @Getter
+  private long lastRefresh;
+}
@@ -16,16 +16,26 @@
 package l9g.app.ldap2moodle;
 
 import com.unboundid.asn1.ASN1GeneralizedTime;
+import com.unboundid.ldap.sdk.Entry;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.util.Date;
+import l9g.app.ldap2moodle.state.SyncStateStore;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
+ * Keeps the sync watermark between runs. The watermark is the highest
+ * modifyTimestamp seen in the LDAP results, so it is taken from the
+ * directory server's clock and not from the clock of the sync host. Delta
+ * searches start an overlap window before the watermark.
+ *
+ * Watermark and change number are stored as metadata of the
+ * SyncStateStore. The former lastsync.timestamp and lastsync.changenumber
+ * files are only read once, when the store does not know the values yet.
  *
  * @author Thorsten Ludewig (t.ludewig@gmail.com)
  */
@@ -36,91 +46,156 @@ public class TimestampUtil
 
   private static final String TIMESTAMP_FILENAME = "lastsync.timestamp";
 
-  private static final String VAR_DIRECTORY_NAME
-    = Application.CONFIG_PATH + "var";
+  private static final String CHANGENUMBER_FILENAME = "lastsync.changenumber";
+
+  private static final String META_TIMESTAMP = "lastsync.timestamp";
+
+  private static final String META_CHANGENUMBER = "lastsync.changenumber";
 
-  public TimestampUtil(String prefix)
+  public static final String MODIFY_TIMESTAMP = "modifyTimestamp";
+
+  /**
+   * @param stateStore store holding the watermark
+   * @param prefix file name prefix of the former timestamp files
+   * @param overlap overlap window in seconds
+   */
+  public TimestampUtil(SyncStateStore stateStore, String prefix, long overlap)
+    throws IOException
   {
-    currentTimestamp = new ASN1GeneralizedTime();
+    this.stateStore = stateStore;
     this.prefix = prefix;
+    this.overlap = Math.max(0, overlap);
 
-    if (System.getProperty("app.home") != null)
-    {
-      varDirectory = new File(System.getProperty("app.home")
-        + File.separator + VAR_DIRECTORY_NAME);
-    }
-    else
+    File varDirectory = VarDirectoryUtil.getVarDirectory();
+
+    String timestampString = stateStore.getMeta(META_TIMESTAMP);
+    if (timestampString == null)
     {
-      varDirectory = new File(VAR_DIRECTORY_NAME);
+      timestampString = readLegacyFile(
+        new File(varDirectory, prefix + "-" + TIMESTAMP_FILENAME));
     }
 
-    LOGGER.debug("varDirectory={}", varDirectory.getAbsolutePath());
-
-    if (!varDirectory.exists())
+    String changeNumberString = stateStore.getMeta(META_CHANGENUMBER);
+    if (changeNumberString == null)
     {
-      varDirectory.mkdirs();
+      changeNumberString = readLegacyFile(
+        new File(varDirectory, prefix + "-" + CHANGENUMBER_FILENAME));
     }
 
-    timestampFile = new File(varDirectory, prefix + "-" + TIMESTAMP_FILENAME);
-
-    LOGGER.debug("timestampFile={}", timestampFile.getAbsolutePath());
-
-    ASN1GeneralizedTime timestamp = null;
+    ASN1GeneralizedTime timestamp = new ASN1GeneralizedTime(0l);
 
-    try
-    {
-      timestamp = readLastSyncTimestamp();
-    }
-    catch (Throwable t)
+    if (timestampString != null)
     {
-      LOGGER.error("ERROR: Reading last timesync file", t);
-      System.exit(-1);
+      try
+      {
+        timestamp = new ASN1GeneralizedTime(timestampString);
+      }
+      catch (Exception e)
+      {
+        throw new IOException("Invalid last sync timestamp: "
+          + timestampString, e);
+      }
     }
 
     lastSyncTimestamp = timestamp;
+    lastChangeNumber = (changeNumberString != null)
+      ? Long.parseLong(changeNumberString) : -1;
+    highWaterMark = lastSyncTimestamp.getTime();
+
+    LOGGER.info("last sync {} timestamp = {}, changenumber = {}", prefix,
+      lastSyncTimestamp, lastChangeNumber);
   }
 
-  private final ASN1GeneralizedTime readLastSyncTimestamp() throws Throwable
+  private String readLegacyFile(File file) throws IOException
   {
-    ASN1GeneralizedTime timestamp = new ASN1GeneralizedTime(0l);
+    String value = null;
 
-    if (timestampFile.exists() && timestampFile.canRead())
+    if (file.exists() && file.canRead())
     {
-      String timestampString;
+      LOGGER.info("reading {}", file.getAbsolutePath());
 
-      try (BufferedReader reader = new BufferedReader(new FileReader(
-        timestampFile)))
+      try (BufferedReader reader = new BufferedReader(new FileReader(file)))
       {
-        timestampString = reader.readLine().trim();
+        value = reader.readLine();
       }
 
-      if (timestampString != null && timestampString.length() > 0)
+      if (value != null)
       {
-        timestamp = new ASN1GeneralizedTime(timestampString);
+        value = value.trim();
+        if (value.length() == 0)
+        {
+          value = null;
+        }
       }
     }
 
-    LOGGER.info("last sync {} timestamp = {}", prefix, timestamp);
-    return timestamp;
+    return value;
+  }
+
+  /**
+   * @return the watermark of the last sync minus the overlap window, the
+   * value to be used in the modifyTimestamp filter of a delta search
+   */
+  public ASN1GeneralizedTime getDeltaTimestamp()
+  {
+    long time = lastSyncTimestamp.getTime();
+
+    if (time > 0)
+    {
+      time = Math.max(0, time - overlap * 1000l);
+    }
+
+    return new ASN1GeneralizedTime(time);
   }
 
-  public void writeCurrentTimestamp() throws IOException
+  /**
+   * Advances the watermark to the modifyTimestamp of the given entry.
+   */
+  public synchronized void observe(Entry entry)
   {
-    LOGGER.info("Writing timestamp to {}", timestampFile.getAbsolutePath());
-    try (PrintWriter out = new PrintWriter(timestampFile))
+    Date modifyTimestamp = entry.getAttributeValueAsDate(MODIFY_TIMESTAMP);
+
+    if (modifyTimestamp != null && modifyTimestamp.getTime() > highWaterMark)
     {
-      out.println(currentTimestamp.toString());
+      highWaterMark = modifyTimestamp.getTime();
     }
   }
 
-  private final ASN1GeneralizedTime currentTimestamp;
+  public synchronized ASN1GeneralizedTime getHighWaterMark()
+  {
+    return new ASN1GeneralizedTime(highWaterMark);
+  }
+
+  public void writeChangeNumber(long changeNumber) throws IOException
+  {
+    LOGGER.info("Writing {} changenumber {}", prefix, changeNumber);
+    stateStore.putMeta(META_CHANGENUMBER, Long.toString(changeNumber));
+    stateStore.commit();
+  }
+
+  /**
+   * Writes the highest modifyTimestamp seen so far. If no entry was seen,
+   * the previous watermark is kept.
+   */
+  public void writeTimestamp() throws IOException
+  {
+    ASN1GeneralizedTime timestamp = getHighWaterMark();
+    LOGGER.info("Writing {} timestamp {}", prefix, timestamp);
+    stateStore.putMeta(META_TIMESTAMP, timestamp.toString());
+    stateStore.commit();
+  }
 
   @Getter
   private final ASN1GeneralizedTime lastSyncTimestamp;
 
-  private final File varDirectory;
+  @Getter
+  private final long lastChangeNumber;
+
+  private long highWaterMark;
+
+  private final long overlap;
 
-  private final File timestampFile;
+  private final SyncStateStore stateStore;
 
   private final String prefix;
 }
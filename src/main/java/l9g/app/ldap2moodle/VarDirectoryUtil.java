@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle;
+
+import java.io.File;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class VarDirectoryUtil
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(VarDirectoryUtil.class);
+
+  private static final String VAR_DIRECTORY_NAME
+    = Application.CONFIG_PATH + "var";
+
+  private VarDirectoryUtil()
+  {
+  }
+
+  public static File getVarDirectory()
+  {
+    File varDirectory;
+
+    if (System.getProperty("app.home") != null)
+    {
+      varDirectory = new File(System.getProperty("app.home")
+        + File.separator + VAR_DIRECTORY_NAME);
+    }
+    else
+    {
+      varDirectory = new File(VAR_DIRECTORY_NAME);
+    }
+
+    LOGGER.debug("varDirectory={}", varDirectory.getAbsolutePath());
+
+    if (!varDirectory.exists())
+    {
+      varDirectory.mkdirs();
+    }
+
+    return varDirectory;
+  }
+}
@@ -18,12 +18,35 @@ package l9g.app.ldap2moodle.commands;
 import ch.qos.logback.classic.Level;
 import com.unboundid.asn1.ASN1GeneralizedTime;
 import com.unboundid.ldap.sdk.Entry;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import l9g.app.ldap2moodle.Config;
+import l9g.app.ldap2moodle.LdapUidCache;
 import l9g.app.ldap2moodle.LogbackConfig;
 import l9g.app.ldap2moodle.TimestampUtil;
 import l9g.app.ldap2moodle.engine.JavaScriptEngine;
+import l9g.app.ldap2moodle.handler.CompactEntryLayout;
+import l9g.app.ldap2moodle.handler.CompactLdapEntry;
+import l9g.app.ldap2moodle.handler.LdapChangeCoalescer;
+import l9g.app.ldap2moodle.handler.LdapChangeSet;
 import l9g.app.ldap2moodle.handler.LdapHandler;
+import l9g.app.ldap2moodle.handler.LdapPersistentSearch;
+import l9g.app.ldap2moodle.handler.MoodleUserDiff;
+import l9g.app.ldap2moodle.model.MoodleAnonymousUser;
 import l9g.app.ldap2moodle.model.MoodleUser;
+import l9g.app.ldap2moodle.services.MoodleConcurrencyLimiter;
+import l9g.app.ldap2moodle.state.DigestUtil;
+import l9g.app.ldap2moodle.state.MoodleUserMirror;
+import l9g.app.ldap2moodle.state.SyncStateStore;
+import l9g.app.ldap2moodle.state.UidIndex;
+import l9g.app.ldap2moodle.state.UserState;
 import l9g.app.ldap2moodle.handler.MoodleHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,6 +64,8 @@ public class ApplicationCommands
   private final static Logger LOGGER
     = LoggerFactory.getLogger(ApplicationCommands.class);
 
+  private static final String MAX_MOODLE_ID = "moodle.max-id";
+
   @Autowired
   private Config config;
 
@@ -53,13 +78,324 @@ public class ApplicationCommands
   @Autowired
   private LogbackConfig logbackConfig;
 
+  @Autowired
+  private MoodleConcurrencyLimiter concurrencyLimiter;
+
   @Command(description = "sync users from LDAP to Moodle")
   public void sync(
     @Option(longNames = "full-sync", defaultValue = "false") boolean fullSync,
+    @Option(longNames = "force", defaultValue = "false") boolean force,
     @Option(longNames = "dry-run", defaultValue = "false") boolean dryRun,
     @Option(longNames = "debug", defaultValue = "false") boolean debug,
     @Option(longNames = "trace", defaultValue = "false") boolean trace
   ) throws Throwable
+  {
+    initialize(dryRun, debug, trace);
+
+    LOGGER.debug("Los gehts!");
+    openState();
+    forceUpdate = force;
+
+    try
+    {
+      runSync(fullSync, dryRun);
+    }
+    finally
+    {
+      closeState();
+      forceUpdate = false;
+    }
+
+    syncReport.log(LOGGER);
+    concurrencyLimiter.log(LOGGER);
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(Level.INFO);
+  }
+
+  private void runSync(boolean fullSync, boolean dryRun) throws Throwable
+  {
+    long runStart = System.currentTimeMillis();
+    TimestampUtil timestampUtil = new TimestampUtil(stateStore,
+      "moodle-users", config.getLdapDeltaTimestampOverlap());
+
+    boolean useChangeLog
+      = "changelog".equalsIgnoreCase(config.getLdapDeltaSource());
+
+    if (useChangeLog && !fullSync && timestampUtil.getLastChangeNumber() >= 0
+      && ldapHandler.isChangeLogTrimmed(timestampUtil.getLastChangeNumber()))
+    {
+      LOGGER.warn("changelog no longer holds the changes after {}, "
+        + "falling back to a full scan", timestampUtil.getLastChangeNumber());
+      fullSync = true;
+    }
+
+    // delta runs may look up only the users of the changed entries
+    boolean targetedLookup = !fullSync
+      && config.isMoodleDeltaLookupEnabled();
+
+    if (targetedLookup)
+    {
+      moodleHandler.getMoodleUsersMap().clear();
+    }
+    else
+    {
+      moodleHandler.readMoodleUsers();
+    }
+
+    Integer adminGroupId = moodleHandler.getAdminGroupId();
+    LOGGER.debug("adminGroupId=" + adminGroupId);
+
+    ///////////////////////////////////////////////////////////////////////////
+    // UID UNIVERSE
+    LdapUidCache uidCache = new LdapUidCache("moodle-users", uidIndex);
+
+    boolean readChangeLog = useChangeLog && !fullSync
+      && timestampUtil.getLastChangeNumber() >= 0;
+    long nextChangeNumber = -1;
+
+    if (useChangeLog && !readChangeLog)
+    {
+      // taken before reading, changes made while reading are replayed
+      // by the next run
+      nextChangeNumber = ldapHandler.getLastChangeNumber();
+      if (nextChangeNumber < 0)
+      {
+        LOGGER.warn("LDAP server does not publish a lastChangeNumber");
+      }
+    }
+
+    ASN1GeneralizedTime timestamp;
+
+    if (fullSync)
+    {
+      timestamp = new ASN1GeneralizedTime(0l); // 01.01.1970, unix time 0
+      // the uid universe is collected while reading all entries below
+      uidCache.refresh();
+    }
+    else
+    {
+      timestamp = timestampUtil.getDeltaTimestamp();
+
+      if (!uidCache.load(config.getLdapUidCacheMaxAge() * 3600000l))
+      {
+        refreshLdapUids(uidCache);
+      }
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // CREATE & UPDATE
+    int noEntries;
+
+    try (JavaScriptEngine js = new JavaScriptEngine())
+    {
+      AtomicInteger entryCounter = new AtomicInteger();
+      CompactEntryLayout layout = ldapHandler.createCompactLayout();
+      List<CompactLdapEntry> pendingEntries = new ArrayList<>();
+
+      Consumer<Entry> syncConsumer = entry ->
+      {
+        timestampUtil.observe(entry);
+        uidCache.add(ldapHandler.getUid(entry));
+
+        if (targetedLookup)
+        {
+          pendingEntries.add(layout.compact(entry));
+
+          if (pendingEntries.size() >= config.getMoodleDeltaLookupBatchSize())
+          {
+            syncBatch(js, pendingEntries, entryCounter);
+          }
+        }
+        else
+        {
+          syncEntry(js, entry, entryCounter.incrementAndGet());
+        }
+      };
+
+      if (readChangeLog)
+      {
+        LdapChangeSet changeSet = ldapHandler.readChangeLog(
+          timestampUtil.getLastChangeNumber(), syncConsumer);
+        nextChangeNumber = changeSet.getLastChangeNumber();
+        changeSet.getDeletedUids().forEach(uidCache::remove);
+
+        if (changeSet.isIncomplete())
+        {
+          LOGGER.info("changelog contains unresolved deletes, rescan uids");
+          refreshLdapUids(uidCache);
+        }
+      }
+      else
+      {
+        ldapHandler.readLdapEntries(timestamp, true, syncConsumer);
+      }
+
+      syncBatch(js, pendingEntries, entryCounter);
+      moodleHandler.flushAll();
+      noEntries = entryCounter.get();
+      LOGGER.info("{} LDAP entries processed", noEntries);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // DELETE
+    if (uidCache.isEmpty())
+    {
+      LOGGER.warn("No LDAP uids found, skipping delete detection");
+    }
+    else
+    {
+      List<MoodleUser> candidates
+        = getDeleteCandidates(targetedLookup, uidCache);
+      lookupAuth(candidates);
+
+      for (MoodleUser user : candidates)
+      {
+        deprovision(user);
+      }
+
+      moodleHandler.flushAll();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    if (!dryRun)
+    {
+      uidCache.save();
+      timestampUtil.writeTimestamp();
+
+      if (nextChangeNumber >= 0)
+      {
+        timestampUtil.writeChangeNumber(nextChangeNumber);
+      }
+
+      stateStore.putMeta("run.start", Long.toString(runStart));
+      stateStore.putMeta("run.end",
+        Long.toString(System.currentTimeMillis()));
+      stateStore.putMeta("run.mode", fullSync ? "full" : "delta");
+      stateStore.putMeta("run.entries", Integer.toString(noEntries));
+      stateStore.putMeta(MAX_MOODLE_ID,
+        Integer.toString(moodleHandler.getMaxMoodleId()));
+    }
+  }
+
+  @Command(description = "keep syncing LDAP changes to Moodle as they happen")
+  public void daemon(
+    @Option(longNames = "dry-run", defaultValue = "false") boolean dryRun,
+    @Option(longNames = "debug", defaultValue = "false") boolean debug,
+    @Option(longNames = "trace", defaultValue = "false") boolean trace
+  ) throws Throwable
+  {
+    initialize(dryRun, debug, trace);
+
+    openState();
+
+    if (config.isMoodleDeltaLookupEnabled())
+    {
+      moodleHandler.getMoodleUsersMap().clear();
+    }
+    else
+    {
+      moodleHandler.readMoodleUsers();
+    }
+
+    LdapChangeCoalescer coalescer = new LdapChangeCoalescer(
+      ldapHandler.createCompactLayout(), config.getDaemonDebounce(),
+      config.getDaemonMaxDelay());
+    long pollInterval = Math.max(100, config.getDaemonDebounce() / 2);
+
+    try (JavaScriptEngine js = new JavaScriptEngine())
+    {
+      AtomicInteger entryCounter = new AtomicInteger();
+      TimestampUtil timestampUtil = null;
+
+      while (!Thread.currentThread().isInterrupted())
+      {
+        LdapPersistentSearch persistentSearch = null;
+
+        try
+        {
+          // subscribe first, so nothing is missed while catching up
+          persistentSearch = ldapHandler.startPersistentSearch(coalescer);
+          timestampUtil = catchUp(js, coalescer, entryCounter);
+
+          while (persistentSearch.isActive())
+          {
+            List<LdapChangeCoalescer.PendingChange> changes
+              = coalescer.drainReady();
+
+            if (!changes.isEmpty())
+            {
+              processChanges(js, changes, entryCounter, timestampUtil);
+
+              if (!dryRun)
+              {
+                timestampUtil.writeTimestamp();
+              }
+
+              syncReport.log(LOGGER);
+              concurrencyLimiter.log(LOGGER);
+            }
+
+            moodleHandler.flushUpdatesIfDue();
+            Thread.sleep(pollInterval);
+          }
+
+          LOGGER.warn("persistent search ended: {}",
+            persistentSearch.getResult());
+        }
+        catch (InterruptedException e)
+        {
+          Thread.currentThread().interrupt();
+        }
+        catch (Throwable t)
+        {
+          LOGGER.error("persistent search failed: {}", t.getMessage());
+        }
+        finally
+        {
+          if (persistentSearch != null)
+          {
+            persistentSearch.close();
+          }
+        }
+
+        if (timestampUtil != null)
+        {
+          processChanges(js, coalescer.drainAll(), entryCounter,
+            timestampUtil);
+
+          if (!dryRun)
+          {
+            timestampUtil.writeTimestamp();
+          }
+        }
+
+        if (!Thread.currentThread().isInterrupted())
+        {
+          LOGGER.info("reconnecting in {}ms", config.getDaemonReconnectDelay());
+
+          try
+          {
+            Thread.sleep(config.getDaemonReconnectDelay());
+          }
+          catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+    finally
+    {
+      closeState();
+    }
+
+    LOGGER.info("daemon stopped");
+
+    logbackConfig.getRootLogger().setLevel(Level.INFO);
+    logbackConfig.getL9gLogger().setLevel(Level.INFO);
+  }
+
+  private void initialize(boolean dryRun, boolean debug, boolean trace)
   {
     logbackConfig.getRootLogger().setLevel(Level.INFO);
     logbackConfig.getL9gLogger().setLevel(Level.INFO);
@@ -80,107 +416,506 @@ public class ApplicationCommands
       dryRun, debug, trace);
     config.setDebug(debug);
     config.setDryRun(dryRun);
+  }
 
-    LOGGER.debug("Los gehts!");
-    TimestampUtil timestampUtil = new TimestampUtil("moodle-users");
+  /**
+   * Replays all changes since the last persisted watermark, used on every
+   * (re)connect of the daemon. The watermark is only written after the
+   * changes have been processed, later it advances with every processed
+   * batch.
+   */
+  private TimestampUtil catchUp(JavaScriptEngine js,
+    LdapChangeCoalescer coalescer, AtomicInteger entryCounter)
+    throws Throwable
+  {
+    TimestampUtil timestampUtil = new TimestampUtil(stateStore,
+      "moodle-users", config.getLdapDeltaTimestampOverlap());
+    long nextChangeNumber = -1;
+    ASN1GeneralizedTime timestamp = timestampUtil.getDeltaTimestamp();
+    boolean readChangeLog
+      = "changelog".equalsIgnoreCase(config.getLdapDeltaSource())
+      && timestampUtil.getLastChangeNumber() >= 0;
 
-    moodleHandler.readMoodleUsers();
+    if (readChangeLog
+      && ldapHandler.isChangeLogTrimmed(timestampUtil.getLastChangeNumber()))
+    {
+      // deletes of the gap are found by the next sync run
+      LOGGER.warn("changelog no longer holds the changes after {}, "
+        + "catching up with a full scan", timestampUtil.getLastChangeNumber());
+      timestamp = new ASN1GeneralizedTime(0l);
+      readChangeLog = false;
+    }
 
-    Integer adminGroupId = moodleHandler.getAdminGroupId();
-    LOGGER.debug("adminGroupId=" + adminGroupId);
+    if (readChangeLog)
+    {
+      LdapChangeSet changeSet = ldapHandler.readChangeLog(
+        timestampUtil.getLastChangeNumber(),
+        entry -> coalescer.changed(ldapHandler.getUid(entry), entry));
+      changeSet.getDeletedUids().forEach(coalescer::deleted);
+      nextChangeNumber = changeSet.getLastChangeNumber();
+    }
+    else
+    {
+      if ("changelog".equalsIgnoreCase(config.getLdapDeltaSource()))
+      {
+        nextChangeNumber = ldapHandler.getLastChangeNumber();
+      }
 
-    ///////////////////////////////////////////////////////////////////////////
-    // DELETE
-    ldapHandler.readAllLdapEntryUIDs();
-    for (MoodleUser user : moodleHandler.getMoodleUsersList())
+      ldapHandler.readLdapEntries(timestamp, true,
+        entry -> coalescer.changed(ldapHandler.getUid(entry), entry));
+    }
+
+    processChanges(js, coalescer.drainAll(), entryCounter, timestampUtil);
+
+    if (!config.isDryRun())
+    {
+      timestampUtil.writeTimestamp();
+
+      if (nextChangeNumber >= 0)
+      {
+        timestampUtil.writeChangeNumber(nextChangeNumber);
+      }
+    }
+
+    return timestampUtil;
+  }
+
+  private void processChanges(JavaScriptEngine js,
+    List<LdapChangeCoalescer.PendingChange> changes,
+    AtomicInteger entryCounter, TimestampUtil timestampUtil)
+  {
+    int batchSize = Math.max(1, config.getMoodleDeltaLookupBatchSize());
+
+    for (int i = 0; i < changes.size(); i += batchSize)
     {
-      if (!ldapHandler.getLdapEntryMap().containsKey(user.getUsername()))
+      List<LdapChangeCoalescer.PendingChange> batch
+        = changes.subList(i, Math.min(changes.size(), i + batchSize));
+
+      // deleted uids are looked up as well, the map is empty otherwise
+      if (config.isMoodleDeltaLookupEnabled())
       {
-        /*
-        List<Integer> roleIds = user.getRole_ids();
+        lookupMoodleUsers(batch.stream()
+          .map(LdapChangeCoalescer.PendingChange::getUid).toList());
+      }
 
-        if (user.getId() == 1 || roleIds.contains(adminGroupId))
+      for (LdapChangeCoalescer.PendingChange change : batch)
+      {
+        try
         {
-          // IGNORE Admin Users
-          LOGGER.warn("IGNORE DELETE ADMIN: {}, {} {} ({})",
-            user.getUsername(), user.getFirstname(),
-            user.getLastname(), user.getEmail());
+          if (change.isDeleted())
+          {
+            MoodleUser user = moodleHandler.getMoodleUser(change.getUid());
+            int moodleId = moodleHandler.getMoodleUserId(change.getUid());
+
+            if (user == null && moodleId >= 0)
+            {
+              user = new MoodleUser();
+              user.setId(moodleId);
+              user.setUsername(change.getUid());
+            }
+
+            if (user != null)
+            {
+              lookupAuth(List.of(user));
+              deprovision(user);
+            }
+          }
+          else
+          {
+            LOGGER.debug("{} ({} changes)", change.getUid(),
+              change.getCount());
+            Entry entry = change.getEntry();
+            syncEntry(js, entry, entryCounter.incrementAndGet());
+            timestampUtil.observe(entry);
+          }
         }
-        else
+        catch (Exception e)
         {
-          // DELETE
-          moodleHandler.deleteUser(user);
+          LOGGER.error("*** SYNC FAILED *** {}: {}", change.getUid(),
+            e.getMessage());
         }
-         */
       }
     }
 
-    ///////////////////////////////////////////////////////////////////////////
-    ASN1GeneralizedTime timestamp;
+    moodleHandler.flushAll();
+  }
 
-    if (fullSync)
+  /**
+   * Deprovisions a Moodle user no longer found in LDAP, protected users,
+   * users with a different authentication method and, with mode none,
+   * all users are only logged.
+   */
+  private void deprovision(MoodleUser user)
+  {
+    String username = user.getUsername();
+    String auth = config.getMoodleDeprovisionAuth();
+
+    if (user.getId() == null || user.getId() <= 1 || Arrays.asList(
+      config.getMoodleDeprovisionProtectedUsers()).contains(username))
     {
-      timestamp = new ASN1GeneralizedTime(0l); // 01.01.1970, unix time 0
+      LOGGER.warn("IGNORE DELETE PROTECTED: {} ({})", username, user.getId());
+    }
+    else if ("anonymize".equals(config.getMoodleDeprovisionMode())
+      && MoodleAnonymousUser.isAnonymized(user))
+    {
+      LOGGER.trace("ALREADY ANONYMIZED: {}", username);
+    }
+    else if (auth != null && !auth.isBlank() && !auth.equals(user.getAuth()))
+    {
+      // fails closed, a user whose auth is unknown is never deprovisioned
+      LOGGER.debug("IGNORE DELETE AUTH {}: {}", user.getAuth(), username);
+    }
+    else if ("none".equals(config.getMoodleDeprovisionMode()))
+    {
+      LOGGER.info("NOT IN LDAP: {} ({})", username, user.getId());
+    }
+    else if ("suspend".equals(config.getMoodleDeprovisionMode())
+      && Boolean.TRUE.equals(user.getSuspended()))
+    {
+      LOGGER.trace("ALREADY SUSPENDED: {}", username);
     }
     else
     {
-      timestamp = timestampUtil.getLastSyncTimestamp();
+      moodleHandler.deleteUser(user, success ->
+      {
+        if (success)
+        {
+          LOGGER.info("DEPROVISIONED ({}): {}",
+            config.getMoodleDeprovisionMode(), username);
+          syncReport.getDeprovisioned().incrementAndGet();
+          forgetState(username);
+        }
+        else
+        {
+          syncReport.getFailed().incrementAndGet();
+        }
+      });
     }
+  }
 
-    ldapHandler.readLdapEntries(timestamp, true);
+  /**
+   * Delete candidates from the state store or the uid index carry no auth,
+   * it is looked up in batches when moodle.deprovision.auth is set.
+   */
+  private void lookupAuth(List<MoodleUser> users)
+  {
+    String auth = config.getMoodleDeprovisionAuth();
 
-    try (JavaScriptEngine js = new JavaScriptEngine())
+    if (auth != null && !auth.isBlank() && !users.isEmpty())
     {
-      int noEntries = ldapHandler.getLdapEntryMap().size();
-      int entryCounter = 0;
+      moodleHandler.lookupAuth(users);
+    }
+  }
 
-      for (Entry entry : ldapHandler.getLdapEntryMap().values())
+  /**
+   * A returning user has to be mapped and sent again.
+   */
+  private void forgetState(String username)
+  {
+    if (!config.isDryRun())
+    {
+      try
       {
-        entryCounter++;
-        LOGGER.debug("{}/{}", entryCounter, noEntries);
-        String login = entry.getAttributeValue(config.getLdapUserId());
-        MoodleUser moodleUser = moodleHandler.getMoodleUsersMap().get(login);
-        MoodleUser updateUser = new MoodleUser();
-        updateUser.setId(moodleUser.getId());
-        updateUser.setUsername(login);
+        stateStore.remove(username);
 
-        if (moodleUser != null)
+        if (uidIndex != null)
         {
-          /*
-          List<Integer> roleIds
-            = moodleHandler.getMoodleUsersMap().get(login).getRole_ids();
+          uidIndex.putDigest(username, null);
+        }
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
 
-          if (roleIds.contains(adminGroupId))
+  /**
+   * Looks up the Moodle users of the pending entries, then syncs them. An
+   * Entry is only rebuilt from the compact form while it is synced.
+   */
+  private void syncBatch(JavaScriptEngine js, List<CompactLdapEntry> entries,
+    AtomicInteger entryCounter)
+  {
+    if (!entries.isEmpty())
+    {
+      lookupMoodleUsers(entries.stream().map(entry -> entry
+        .getAttributeValue(config.getLdapUserId()).trim().toLowerCase())
+        .toList());
+      entries.forEach(entry -> syncEntry(js, entry.toEntry(),
+        entryCounter.incrementAndGet()));
+      entries.clear();
+    }
+  }
+
+  private void lookupMoodleUsers(List<String> usernames)
+  {
+    if (!usernames.isEmpty())
+    {
+      moodleHandler.lookupMoodleUsers(usernames);
+    }
+  }
+
+  /**
+   * Only the users missing in LDAP are collected. Without targeted lookups
+   * all Moodle users are checked: from the map or the mirror, or, when the
+   * uid index (which holds no usernames) replaces the map, the index slots
+   * without LDAP flag are read from Moodle by id. Targeted lookups never
+   * read all Moodle users, only the users recorded in the state store are
+   * checked then (only id and username are set).
+   */
+  private List<MoodleUser> getDeleteCandidates(boolean targetedLookup,
+    LdapUidCache uidCache) throws InterruptedException
+  {
+    List<MoodleUser> users = new ArrayList<>();
+
+    if (targetedLookup)
+    {
+      for (UserState userState : stateStore.getUserStates(
+        state -> state.getMoodleId() >= 0
+        && !uidCache.contains(state.getUid())))
+      {
+        MoodleUser user = new MoodleUser();
+        user.setId(userState.getMoodleId());
+        user.setUsername(userState.getUid());
+        users.add(user);
+      }
+    }
+    else if (uidIndex != null && moodleHandler.getMoodleUserMirror() == null)
+    {
+      // the index knows the Moodle ids of the uids missing in LDAP, only
+      // these users are read; deprovisioning waits until they are read
+      List<Integer> moodleIds = uidIndex.getMoodleIds(UidIndex.FLAG_MOODLE,
+        UidIndex.FLAG_LDAP);
+      LOGGER.debug("{} delete candidates in uid index", moodleIds.size());
+      moodleHandler.readMoodleUsersById(moodleIds, user ->
+      {
+        if (!uidCache.contains(user.getUsername()))
+        {
+          users.add(user);
+        }
+      });
+    }
+    else
+    {
+      for (MoodleUser user : moodleHandler.getMoodleUsers())
+      {
+        if (!uidCache.contains(user.getUsername()))
+        {
+          users.add(user);
+        }
+      }
+    }
+
+    return users;
+  }
+
+  /**
+   * cheap refresh of the uid universe, only the uid attribute is read
+   */
+  private void refreshLdapUids(LdapUidCache uidCache) throws Throwable
+  {
+    uidCache.refresh();
+    ldapHandler.readLdapEntries(new ASN1GeneralizedTime(0l), false,
+      entry -> uidCache.add(ldapHandler.getUid(entry)));
+  }
+
+  private void openState() throws IOException
+  {
+    stateStore = new SyncStateStore("moodle-users");
+    syncReport = new SyncReport();
+
+    // Moodle users created outside of this sync are only in the meta data
+    String maxMoodleId = stateStore.getMeta(MAX_MOODLE_ID);
+    moodleHandler.setMaxMoodleId(Math.max(stateStore.getMaxMoodleId(),
+      (maxMoodleId != null) ? Integer.parseInt(maxMoodleId) : 0));
+
+    if (config.isUidIndexEnabled())
+    {
+      uidIndex = new UidIndex("moodle-users",
+        config.getUidIndexInitialCapacity());
+      moodleHandler.setUidIndex(uidIndex);
+    }
+
+    if (config.isMoodleMirrorEnabled())
+    {
+      moodleUserMirror = new MoodleUserMirror("moodle-users");
+      moodleHandler.setMoodleUserMirror(moodleUserMirror);
+    }
+  }
+
+  private void closeState() throws IOException
+  {
+    try
+    {
+      stateStore.close();
+    }
+    finally
+    {
+      stateStore = null;
+
+      if (uidIndex != null)
+      {
+        moodleHandler.setUidIndex(null);
+        uidIndex.close();
+        uidIndex = null;
+      }
+
+      if (moodleUserMirror != null)
+      {
+        moodleHandler.setMoodleUserMirror(null);
+        moodleUserMirror.close();
+        moodleUserMirror = null;
+      }
+    }
+  }
+
+  /**
+   * Creates or updates a single user. Unchanged users are skipped without
+   * a REST call: first by the digest of the LDAP attributes and the
+   * mapping script (no mapping needed), then by the digest of the mapped
+   * payload and finally by comparing it field by field with the current
+   * Moodle user. Updates send only the changed fields.
+   */
+  private void syncEntry(JavaScriptEngine js, Entry entry, int entryCounter)
+  {
+    // creates and unchanged entries must not hold back queued updates
+    moodleHandler.flushUpdatesIfDue();
+
+    String login = ldapHandler.getUid(entry);
+    LOGGER.debug("{}: {}", entryCounter, login);
+    int moodleId = moodleHandler.getMoodleUserId(login);
+    UserState userState = stateStore.get(login);
+    String ldapDigest = DigestUtil.ldapDigest(entry,
+      config.getLdapUserAttributeNames(), js.getScriptDigest());
+
+    boolean known = !forceUpdate && moodleId >= 0 && userState != null
+      && moodleId == userState.getMoodleId();
+
+    // with the uid index the digest is checked without the state store
+    boolean unchanged = (uidIndex != null)
+      ? (!forceUpdate && moodleId >= 0
+      && uidIndex.digestEquals(login, ldapDigest))
+      : (known && ldapDigest.equals(userState.getLdapDigest()));
+
+    if (unchanged)
+    {
+      LOGGER.trace("UNCHANGED: {}", login);
+      syncReport.getSkippedLdapDigest().incrementAndGet();
+      return;
+    }
+
+    MoodleUser updateUser = new MoodleUser();
+    updateUser.setUsername(login);
+
+    if (moodleId >= 0)
+    {
+      // UPDATE
+      updateUser.setId(moodleId);
+      js.getValue().executeVoid("update", updateUser, entry);
+      String payloadDigest = DigestUtil.payloadDigest(updateUser);
+
+      if (known && payloadDigest.equals(userState.getPayloadDigest()))
+      {
+        LOGGER.trace("UNCHANGED PAYLOAD: {}", login);
+        syncReport.getSkippedPayloadDigest().incrementAndGet();
+        recordState(login, moodleId, payloadDigest, ldapDigest, entry);
+        return;
+      }
+
+      // without the live user (uid index) all mapped fields are sent
+      MoodleUser moodleUser = moodleHandler.getMoodleUser(login);
+      Map<String, Object> changes
+        = MoodleUserDiff.diff(moodleUser, updateUser);
+
+      if (changes.isEmpty())
+      {
+        LOGGER.trace("NO DIFFERENCE: {}", login);
+        syncReport.getSkippedNoDifference().incrementAndGet();
+        recordState(login, moodleId, payloadDigest, ldapDigest, entry);
+      }
+      else
+      {
+        // batched, the callback runs when the batch has been sent
+        moodleHandler.updateUser(login, moodleId, changes, success ->
+        {
+          if (success)
           {
-            // IGNORE Admin Users
-            LOGGER.warn("IGNORE UPDATE ADMIN: {}, {} {} ({})",
-              entryCounter, noEntries,
-              moodleUser.getLogin(),
-              moodleUser.getFirstname(), moodleUser.getLastname(),
-              moodleUser.getEmail());
+            if (moodleUser != null && !config.isDryRun())
+            {
+              MoodleUserDiff.apply(moodleUser, changes);
+            }
+
+            syncReport.getUpdated().incrementAndGet();
+            recordState(login, moodleId, payloadDigest, ldapDigest, entry);
           }
           else
           {
-            // UPDATE
-            js.getValue().executeVoid("update", updateUser, entry);
-            moodleHandler.updateUser(updateUser);
-          }*/
+            syncReport.getFailed().incrementAndGet();
+          }
+        });
+      }
+    }
+    else
+    {
+      // CREATE
+      js.getValue().executeVoid("create", updateUser, entry);
+      String payloadDigest = DigestUtil.payloadDigest(updateUser);
+
+      // batched, the callback runs when the batch has been sent
+      moodleHandler.createUser(updateUser, createdUser ->
+      {
+        if (createdUser != null)
+        {
+          syncReport.getCreated().incrementAndGet();
+          recordState(login, createdUser.getId(), payloadDigest, ldapDigest,
+            entry);
         }
         else
         {
-          // CREATE
-          js.getValue().executeVoid("create", updateUser, entry);
-          moodleHandler.createUser(updateUser);
+          syncReport.getFailed().incrementAndGet();
         }
-      }
+      });
     }
-    ///////////////////////////////////////////////////////////////////////////
-    if (!dryRun)
+  }
+
+  private void recordState(String login, Integer moodleId,
+    String payloadDigest, String ldapDigest, Entry entry)
+  {
+    if (!config.isDryRun())
     {
-      timestampUtil.writeCurrentTimestamp();
-    }
+      Date modifyTimestamp
+        = entry.getAttributeValueAsDate(TimestampUtil.MODIFY_TIMESTAMP);
 
-    logbackConfig.getRootLogger().setLevel(Level.INFO);
-    logbackConfig.getL9gLogger().setLevel(Level.INFO);
+      try
+      {
+        stateStore.put(new UserState(login,
+          moodleId == null ? -1 : moodleId, payloadDigest, ldapDigest,
+          modifyTimestamp == null ? 0 : modifyTimestamp.getTime(),
+          System.currentTimeMillis()));
+
+        if (uidIndex != null)
+        {
+          uidIndex.putDigest(login, ldapDigest);
+        }
+      }
+      catch (IOException e)
+      {
+        throw new UncheckedIOException(e);
+      }
+    }
   }
+
+  private SyncStateStore stateStore;
+
+  private UidIndex uidIndex;
+
+  private MoodleUserMirror moodleUserMirror;
+
+  private SyncReport syncReport;
+
+  /**
+   * ignore the recorded digests, every user is mapped and sent
+   */
+  private boolean forceUpdate;
 }
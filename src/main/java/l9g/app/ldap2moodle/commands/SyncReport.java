@@ -0,0 +1,73 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.commands;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.Getter;
+import org.slf4j.Logger;
+
+/**
+ * Counters of a sync run, entries may be processed by multiple threads.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+public class SyncReport
+{
+  public void log(Logger logger)
+  {
+    logger.info("created={}, updated={}, unchanged (ldap digest)={}, "
+      + "unchanged (payload digest)={}, unchanged (no difference)={}, "
+      + "deprovisioned={}, failed={}", created.get(), updated.get(),
+      skippedLdapDigest.get(), skippedPayloadDigest.get(),
+      skippedNoDifference.get(), deprovisioned.get(), failed.get());
+  }
+
+  /**
+   * users created in Moodle
+   */
+  private final AtomicInteger created = new AtomicInteger();
+
+  /**
+   * users updated in Moodle
+   */
+  private final AtomicInteger updated = new AtomicInteger();
+
+  /**
+   * users skipped without mapping, LDAP attributes and script unchanged
+   */
+  private final AtomicInteger skippedLdapDigest = new AtomicInteger();
+
+  /**
+   * users skipped after mapping, mapped payload unchanged
+   */
+  private final AtomicInteger skippedPayloadDigest = new AtomicInteger();
+
+  /**
+   * users skipped after mapping, no field differs from the Moodle user
+   */
+  private final AtomicInteger skippedNoDifference = new AtomicInteger();
+
+  /**
+   * users suspended, anonymized or deleted in Moodle
+   */
+  private final AtomicInteger deprovisioned = new AtomicInteger();
+
+  /**
+   * failed create, update or deprovision requests
+   */
+  private final AtomicInteger failed = new AtomicInteger();
+}
@@ -67,7 +67,7 @@ public class TestCommands
 
       for (String login : loginList)
       {
-        Entry entry = ldapHandler.getLdapEntryMap().get(login);
+        Entry entry = ldapHandler.getLdapEntryMap().get(login).toEntry();
         System.out.println("\n" + entry);
         MoodleUser user = new MoodleUser();
         user.setUsername(login);
@@ -81,7 +81,7 @@ public class TestCommands
   public void testAnonymousUser() throws Throwable
   {
     ObjectMapper objectMapper = new ObjectMapper();
-    MoodleAnonymousUser user = new MoodleAnonymousUser("eid9519122");
+    MoodleAnonymousUser user = new MoodleAnonymousUser(9519122);
     System.out.println("user=" + objectMapper.writeValueAsString(user));
   }
 
@@ -120,7 +120,7 @@ public class TestCommands
     logbackConfig.getL9gLogger().setLevel(Level.DEBUG);
     LOGGER.debug("testReadAllMoodleUsers");
     moodleHandler.readMoodleUsers();
-    moodleHandler.getMoodleUsersList()
+    moodleHandler.getMoodleUsers()
       .forEach(entry -> System.out.println(entry.toString()));
   }
 }
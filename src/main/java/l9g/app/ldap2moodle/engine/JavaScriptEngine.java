@@ -18,7 +18,9 @@ package l9g.app.ldap2moodle.engine;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import l9g.app.ldap2moodle.Application;
+import l9g.app.ldap2moodle.state.DigestUtil;
 import lombok.Getter;
 import org.graalvm.polyglot.Context;
 import org.graalvm.polyglot.HostAccess;
@@ -51,8 +53,11 @@ public class JavaScriptEngine implements Closeable
       .allowHostClassLoading(true)
       .build();
 
+    File scriptFile = new File(SCRIPT_FILENAME);
+    scriptDigest = DigestUtil.sha256(Files.readAllBytes(scriptFile.toPath()));
+
     value = context.eval(Source.newBuilder(
-      SCRIPT_TYPE, new File(SCRIPT_FILENAME)).build());
+      SCRIPT_TYPE, scriptFile).build());
   }
 
   @Override
@@ -68,4 +73,11 @@ public class JavaScriptEngine implements Closeable
 
   @Getter
   private final Value value;
+
+  /**
+   * SHA-256 of the mapping script, a changed script invalidates all
+   * recorded LDAP digests
+   */
+  @Getter
+  private final String scriptDigest;
 }
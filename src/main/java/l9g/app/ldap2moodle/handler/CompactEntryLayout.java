@@ -0,0 +1,149 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixed attribute index layout shared by all CompactLdapEntry objects of
+ * one read. Values of shared attributes (e.g. o, ou, department) are
+ * deduplicated, every distinct value is stored only once.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class CompactEntryLayout
+{
+  public CompactEntryLayout(String[] attributeNames,
+    String[] sharedAttributeNames)
+  {
+    Map<String, Integer> indexes = new LinkedHashMap<>();
+
+    for (String attributeName : attributeNames)
+    {
+      String name = attributeName.trim();
+      if (name.length() > 0)
+      {
+        indexes.putIfAbsent(name.toLowerCase(), indexes.size());
+      }
+    }
+
+    this.attributeIndexes = new HashMap<>(indexes);
+    this.attributeNames = new String[indexes.size()];
+    this.shared = new boolean[indexes.size()];
+
+    for (String attributeName : attributeNames)
+    {
+      String name = attributeName.trim();
+      Integer index = indexes.get(name.toLowerCase());
+      if (index != null && this.attributeNames[index] == null)
+      {
+        this.attributeNames[index] = name;
+      }
+    }
+
+    if (sharedAttributeNames != null)
+    {
+      for (String sharedAttributeName : sharedAttributeNames)
+      {
+        int index = indexOf(sharedAttributeName.trim());
+        if (index >= 0)
+        {
+          shared[index] = true;
+        }
+      }
+    }
+  }
+
+  public int indexOf(String attributeName)
+  {
+    Integer index = attributeIndexes.get(attributeName.toLowerCase());
+    return index == null ? -1 : index;
+  }
+
+  public int size()
+  {
+    return attributeNames.length;
+  }
+
+  public String getAttributeName(int index)
+  {
+    return attributeNames[index];
+  }
+
+  /**
+   * Creates the compact representation of the given entry, attributes
+   * which are not part of this layout are dropped. Attributes with options
+   * (e.g. cn;lang-de) are dropped as well, they would share the slot of
+   * the base attribute.
+   */
+  public CompactLdapEntry compact(Entry entry)
+  {
+    Object[] values = new Object[attributeNames.length];
+
+    for (Attribute attribute : entry.getAttributes())
+    {
+      if (attribute.hasOptions())
+      {
+        continue;
+      }
+
+      int index = indexOf(attribute.getName());
+
+      if (index >= 0 && attribute.hasValue())
+      {
+        String[] attributeValues = attribute.getValues();
+
+        for (int i = 0; i < attributeValues.length; i++)
+        {
+          attributeValues[i] = share(index, attributeValues[i]);
+        }
+
+        values[index] = (attributeValues.length == 1)
+          ? attributeValues[0] : attributeValues;
+      }
+    }
+
+    return new CompactLdapEntry(this, entry.getDN(), values);
+  }
+
+  private synchronized String share(int index, String value)
+  {
+    String sharedValue = value;
+
+    if (shared[index])
+    {
+      sharedValue = valuePool.putIfAbsent(value, value);
+      if (sharedValue == null)
+      {
+        sharedValue = value;
+      }
+    }
+
+    return sharedValue;
+  }
+
+  private final Map<String, Integer> attributeIndexes;
+
+  private final String[] attributeNames;
+
+  private final boolean[] shared;
+
+  private final Map<String, String> valuePool = new HashMap<>();
+}
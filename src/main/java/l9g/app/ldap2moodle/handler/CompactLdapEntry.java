@@ -0,0 +1,107 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import com.unboundid.ldap.sdk.Attribute;
+import com.unboundid.ldap.sdk.Entry;
+import java.util.ArrayList;
+import java.util.List;
+import lombok.Getter;
+
+/**
+ * Memory saving projection of an LDAP entry. Only the attributes of the
+ * CompactEntryLayout are kept, each slot holds either null, a String or a
+ * String[] for multi-valued attributes.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class CompactLdapEntry
+{
+  CompactLdapEntry(CompactEntryLayout layout, String dn, Object[] values)
+  {
+    this.layout = layout;
+    this.dn = dn;
+    this.values = values;
+  }
+
+  public String getAttributeValue(String attributeName)
+  {
+    String value = null;
+    int index = layout.indexOf(attributeName);
+
+    if (index >= 0 && values[index] != null)
+    {
+      value = (values[index] instanceof String)
+        ? (String) values[index] : ((String[]) values[index])[0];
+    }
+
+    return value;
+  }
+
+  public String[] getAttributeValues(String attributeName)
+  {
+    String[] attributeValues = null;
+    int index = layout.indexOf(attributeName);
+
+    if (index >= 0 && values[index] != null)
+    {
+      attributeValues = (values[index] instanceof String)
+        ? new String[]
+        {
+          (String) values[index]
+        } : ((String[]) values[index]).clone();
+    }
+
+    return attributeValues;
+  }
+
+  /**
+   * Builds a new Entry view for the JavaScript mapping, it is not cached.
+   */
+  public Entry toEntry()
+  {
+    List<Attribute> attributes = new ArrayList<>();
+
+    for (int i = 0; i < values.length; i++)
+    {
+      if (values[i] instanceof String)
+      {
+        attributes.add(new Attribute(layout.getAttributeName(i),
+          (String) values[i]));
+      }
+      else if (values[i] != null)
+      {
+        attributes.add(new Attribute(layout.getAttributeName(i),
+          (String[]) values[i]));
+      }
+    }
+
+    return new Entry(dn, attributes);
+  }
+
+  @Override
+  public String toString()
+  {
+    return toEntry().toString();
+  }
+
+  private final CompactEntryLayout layout;
+
+  @Getter
+  private final String dn;
+
+  private final Object[] values;
+}
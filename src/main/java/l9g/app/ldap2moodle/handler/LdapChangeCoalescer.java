@@ -0,0 +1,158 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import com.unboundid.ldap.sdk.Entry;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Collects LDAP changes per uid. A uid is handed out once no further change
+ * for it arrived within the debounce window, or when its first change is
+ * older than the maximum delay. Later changes replace earlier ones, so a
+ * burst of modifications results in a single update. Pending entries are
+ * kept as CompactLdapEntry.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class LdapChangeCoalescer
+{
+  /**
+   * @param layout pending entries are held in this compact form
+   */
+  public LdapChangeCoalescer(CompactEntryLayout layout, long debounce,
+    long maxDelay)
+  {
+    this.layout = layout;
+    this.debounce = debounce;
+    this.maxDelay = Math.max(debounce, maxDelay);
+  }
+
+  public synchronized void changed(String uid, Entry entry)
+  {
+    offer(uid, layout.compact(entry), false);
+  }
+
+  public synchronized void deleted(String uid)
+  {
+    offer(uid, null, true);
+  }
+
+  private void offer(String uid, CompactLdapEntry entry, boolean deleted)
+  {
+    long now = System.currentTimeMillis();
+    PendingChange change = pendingChanges.get(uid);
+
+    if (change == null)
+    {
+      pendingChanges.put(uid, new PendingChange(uid, entry, deleted, now));
+    }
+    else
+    {
+      change.compactEntry = entry;
+      change.deleted = deleted;
+      change.lastSeen = now;
+      change.count++;
+    }
+  }
+
+  /**
+   * Removes and returns all changes which are ready to be processed.
+   */
+  public synchronized List<PendingChange> drainReady()
+  {
+    long now = System.currentTimeMillis();
+    List<PendingChange> ready = new ArrayList<>();
+    Iterator<PendingChange> iterator = pendingChanges.values().iterator();
+
+    while (iterator.hasNext())
+    {
+      PendingChange change = iterator.next();
+
+      if (now - change.lastSeen >= debounce
+        || now - change.firstSeen >= maxDelay)
+      {
+        ready.add(change);
+        iterator.remove();
+      }
+    }
+
+    return ready;
+  }
+
+  /**
+   * Removes and returns all pending changes, regardless of their age.
+   */
+  public synchronized List<PendingChange> drainAll()
+  {
+    List<PendingChange> all = new ArrayList<>(pendingChanges.values());
+    pendingChanges.clear();
+    return all;
+  }
+
+  public synchronized int size()
+  {
+    return pendingChanges.size();
+  }
+
+  @Getter
+  @ToString(exclude = "compactEntry")
+  public static class PendingChange
+  {
+    PendingChange(String uid, CompactLdapEntry compactEntry, boolean deleted,
+      long now)
+    {
+      this.uid = uid;
+      this.compactEntry = compactEntry;
+      this.deleted = deleted;
+      this.firstSeen = this.lastSeen = now;
+      this.count = 1;
+    }
+
+    /**
+     * @return a new Entry built from the compact form, null for deletes
+     */
+    public Entry getEntry()
+    {
+      return compactEntry == null ? null : compactEntry.toEntry();
+    }
+
+    private final String uid;
+
+    private CompactLdapEntry compactEntry;
+
+    private boolean deleted;
+
+    private final long firstSeen;
+
+    private long lastSeen;
+
+    private int count;
+  }
+
+  private final CompactEntryLayout layout;
+
+  private final long debounce;
+
+  private final long maxDelay;
+
+  private final LinkedHashMap<String, PendingChange> pendingChanges
+    = new LinkedHashMap<>();
+}
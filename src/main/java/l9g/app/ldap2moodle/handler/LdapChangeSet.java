@@ -0,0 +1,67 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import java.util.HashSet;
+import java.util.Set;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Result of reading the server changelog since a given change number.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+@ToString
+public class LdapChangeSet
+{
+  public LdapChangeSet(long lastChangeNumber)
+  {
+    this.lastChangeNumber = lastChangeNumber;
+  }
+
+  /**
+   * highest change number processed, to be persisted for the next run
+   */
+  @Setter
+  private long lastChangeNumber;
+
+  /**
+   * number of changelog records read
+   */
+  @Setter
+  private int changeCount;
+
+  /**
+   * number of changed entries passed to the consumer
+   */
+  @Setter
+  private int entryCount;
+
+  /**
+   * uids of deleted or renamed away entries
+   */
+  private final Set<String> deletedUids = new HashSet<>();
+
+  /**
+   * true if a delete could not be mapped to a uid, the uid universe has to
+   * be rescanned to detect it
+   */
+  @Setter
+  private boolean incomplete;
+}
@@ -17,20 +17,48 @@ package l9g.app.ldap2moodle.handler;
 
 import com.unboundid.asn1.ASN1GeneralizedTime;
 import com.unboundid.asn1.ASN1OctetString;
+import com.unboundid.ldap.sdk.ChangeType;
+import com.unboundid.ldap.sdk.DN;
 import com.unboundid.ldap.sdk.Entry;
+import com.unboundid.ldap.sdk.GetEntryLDAPConnectionPoolHealthCheck;
 import com.unboundid.ldap.sdk.LDAPConnection;
 import com.unboundid.ldap.sdk.LDAPConnectionOptions;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.LDAPSearchException;
+import com.unboundid.ldap.sdk.RDN;
+import com.unboundid.ldap.sdk.ResultCode;
+import com.unboundid.ldap.sdk.RootDSE;
 import com.unboundid.ldap.sdk.SearchRequest;
 import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultListener;
+import com.unboundid.ldap.sdk.SearchResultReference;
 import com.unboundid.ldap.sdk.SearchScope;
+import com.unboundid.ldap.sdk.SimpleBindRequest;
+import com.unboundid.ldap.sdk.SingleServerSet;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import com.unboundid.ldap.sdk.controls.PersistentSearchRequestControl;
 import com.unboundid.ldap.sdk.controls.SimplePagedResultsControl;
 import com.unboundid.util.ssl.SSLUtil;
 import com.unboundid.util.ssl.TrustAllTrustManager;
+import jakarta.annotation.PreDestroy;
 import java.security.GeneralSecurityException;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import javax.net.ssl.SSLSocketFactory;
 import l9g.app.ldap2moodle.Config;
+import l9g.app.ldap2moodle.TimestampUtil;
 import lombok.Getter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,6 +76,14 @@ public class LdapHandler
   private final static Logger LOGGER
     = LoggerFactory.getLogger(LdapHandler.class);
 
+  /**
+   * the changes attribute (the LDIF of the modification) is not read
+   */
+  private static final String[] CHANGELOG_ATTRIBUTES =
+  {
+    "changeNumber", "changeType", "targetDN", "newRDN", "newSuperior"
+  };
+
   @Autowired
   private Config config;
 
@@ -61,41 +97,74 @@ public class LdapHandler
     return this;
   }
 
-  private LDAPConnection getConnection() throws Exception
+  private synchronized LDAPConnectionPool getConnectionPool() throws Exception
   {
-    LOGGER.debug("host = " + config.getLdapHostname());
-    LOGGER.debug("port = " + config.getLdapPort());
-    LOGGER.debug("ssl = " + config.isLdapSslEnabled());
-    LOGGER.debug("bind dn = " + config.getLdapBindDn());
-    LOGGER.trace("bind pw = " + cryptoHandler.decrypt(config.
-      getLdapBindPassword()));
+    if (connectionPool == null || connectionPool.isClosed())
+    {
+      LOGGER.debug("host = " + config.getLdapHostname());
+      LOGGER.debug("port = " + config.getLdapPort());
+      LOGGER.debug("ssl = " + config.isLdapSslEnabled());
+      LOGGER.debug("bind dn = " + config.getLdapBindDn());
+      LOGGER.debug("pool size = " + config.getLdapPoolSize());
 
-    LDAPConnection ldapConnection;
+      LDAPConnectionOptions options = new LDAPConnectionOptions();
 
-    LDAPConnectionOptions options = new LDAPConnectionOptions();
-    if (config.isLdapSslEnabled())
-    {
-      ldapConnection = new LDAPConnection(createSSLSocketFactory(), options,
-        config.getLdapHostname(), config.getLdapPort(),
-        config.getLdapBindDn(),
-        cryptoHandler.decrypt(config.getLdapBindPassword()));
+      SingleServerSet serverSet;
+
+      if (config.isLdapSslEnabled())
+      {
+        serverSet = new SingleServerSet(config.getLdapHostname(),
+          config.getLdapPort(), getSSLSocketFactory(), options);
+      }
+      else
+      {
+        serverSet = new SingleServerSet(config.getLdapHostname(),
+          config.getLdapPort(), options);
+      }
+
+      String bindPassword = cryptoHandler.decrypt(config.getLdapBindPassword());
+      LOGGER.trace("bind pw = " + bindPassword);
+
+      int poolSize = Math.max(1, config.getLdapPoolSize());
+
+      connectionPool = new LDAPConnectionPool(serverSet,
+        new SimpleBindRequest(config.getLdapBindDn(), bindPassword),
+        1, poolSize);
+
+      connectionPool.setConnectionPoolName(config.getLdapHostname());
+      connectionPool.setHealthCheck(new GetEntryLDAPConnectionPoolHealthCheck(
+        "", 10000l, false, false, false, true, true));
+      connectionPool.setHealthCheckIntervalMillis(
+        config.getLdapPoolHealthCheckInterval());
+      connectionPool.setMaxConnectionAgeMillis(
+        config.getLdapPoolMaxConnectionAge());
+      connectionPool.setRetryFailedOperationsDueToInvalidConnections(true);
     }
-    else
+
+    return connectionPool;
+  }
+
+  private synchronized SSLSocketFactory getSSLSocketFactory() throws
+    GeneralSecurityException
+  {
+    if (sslSocketFactory == null)
     {
-      ldapConnection = new LDAPConnection(options,
-        config.getLdapHostname(), config.getLdapPort(),
-        config.getLdapBindDn(),
-        cryptoHandler.decrypt(config.getLdapBindPassword()));
+      SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
+      sslSocketFactory = sslUtil.createSSLSocketFactory();
     }
-    ldapConnection.setConnectionName(config.getLdapHostname());
-    return ldapConnection;
+
+    return sslSocketFactory;
   }
 
-  private SSLSocketFactory createSSLSocketFactory() throws
-    GeneralSecurityException
+  @PreDestroy
+  public synchronized void close()
   {
-    SSLUtil sslUtil = new SSLUtil(new TrustAllTrustManager());
-    return sslUtil.createSSLSocketFactory();
+    if (connectionPool != null)
+    {
+      LOGGER.debug("closing LDAP connection pool");
+      connectionPool.close();
+      connectionPool = null;
+    }
   }
 
   private void printLdapEntriesMap()
@@ -106,12 +175,45 @@ public class LdapHandler
     });
   }
 
+  public String getUid(Entry entry)
+  {
+    return entry.getAttributeValue(config.getLdapUserId()).trim().toLowerCase();
+  }
+
   public void readLdapEntries(
     ASN1GeneralizedTime lastSyncTimestamp, boolean withAttributes)
     throws Throwable
   {
     ldapEntryMap.clear();
 
+    CompactEntryLayout layout = withAttributes
+      ? createCompactLayout()
+      : new CompactEntryLayout(new String[]
+      {
+        config.getLdapUserId()
+      }, null);
+
+    readLdapEntries(lastSyncTimestamp, withAttributes,
+      entry -> ldapEntryMap.put(getUid(entry), layout.compact(entry)));
+  }
+
+  /**
+   * Streams every matching entry to the given consumer as soon as it is
+   * decoded. Only the current page is held by the LDAP SDK, nothing is
+   * collected by this handler.
+   *
+   * When partitions are configured (ldap.partition.base-dns and/or
+   * ldap.partition.filter-shards) every combination of base DN and filter
+   * shard is searched concurrently on its own pooled connection. The
+   * consumer is never called concurrently.
+   *
+   * @return number of entries passed to the consumer
+   */
+  public int readLdapEntries(
+    ASN1GeneralizedTime lastSyncTimestamp, boolean withAttributes,
+    Consumer<Entry> consumer)
+    throws Throwable
+  {
     String filter = new MessageFormat(
       config.getLdapFilter()).format(new Object[]
     {
@@ -120,70 +222,475 @@ public class LdapHandler
 
     LOGGER.debug("filter={}", filter);
 
-    try (LDAPConnection connection = getConnection())
+    String[] attributes = withAttributes
+      ? getSearchAttributeNames()
+      : new String[]
+      {
+        config.getLdapUserId()
+      };
+
+    List<String[]> partitions = buildPartitions(filter);
+    int totalEntries = 0;
+
+    if (partitions.size() == 1)
+    {
+      totalEntries = readPartition(partitions.get(0)[0],
+        partitions.get(0)[1], attributes, consumer);
+    }
+    else
+    {
+      int threads = Math.max(1,
+        Math.min(config.getLdapPartitionThreads(), partitions.size()));
+      LOGGER.info("reading {} partitions with {} threads",
+        partitions.size(), threads);
+
+      Object consumerLock = new Object();
+      Consumer<Entry> mergedConsumer = entry ->
+      {
+        synchronized (consumerLock)
+        {
+          consumer.accept(entry);
+        }
+      };
+
+      ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+      try
+      {
+        List<Future<Integer>> futures = new ArrayList<>();
+
+        for (String[] partition : partitions)
+        {
+          futures.add(executor.submit(() -> readPartition(
+            partition[0], partition[1], attributes, mergedConsumer)));
+        }
+
+        for (Future<Integer> future : futures)
+        {
+          try
+          {
+            totalEntries += future.get();
+          }
+          catch (ExecutionException e)
+          {
+            throw e.getCause();
+          }
+        }
+      }
+      finally
+      {
+        executor.shutdownNow();
+      }
+    }
+
+    if (totalEntries == 0)
+    {
+      LOGGER.info("No entries to synchronize found");
+    }
+    else
+    {
+      LOGGER.info("read from source DNs, {} entries", totalEntries);
+    }
+
+    return totalEntries;
+  }
+
+  /**
+   * @return list of { base DN, filter } pairs
+   */
+  private List<String[]> buildPartitions(String filter)
+  {
+    List<String[]> partitions = new ArrayList<>();
+
+    String[] baseDns = config.getLdapPartitionBaseDns();
+    if (baseDns == null || baseDns.length == 0)
     {
-      SearchRequest searchRequest;
+      baseDns = new String[]
+      {
+        config.getLdapBaseDn()
+      };
+    }
 
-      if (withAttributes)
+    String[] filterShards = config.getLdapPartitionFilterShards();
+
+    for (String baseDn : baseDns)
+    {
+      if (filterShards == null || filterShards.length == 0)
       {
-        searchRequest = new SearchRequest(
-          config.getLdapBaseDn(), SearchScope.SUB, filter,
-          config.getLdapUserAttributeNames());
+        partitions.add(new String[]
+        {
+          baseDn.trim(), filter
+        });
       }
       else
       {
-        searchRequest = new SearchRequest(
-          config.getLdapBaseDn(), SearchScope.SUB, filter,
-          config.getLdapUserId());
+        for (String filterShard : filterShards)
+        {
+          partitions.add(new String[]
+          {
+            baseDn.trim(), "(&" + filter + filterShard.trim() + ")"
+          });
+        }
+      }
+    }
+
+    return partitions;
+  }
+
+  /**
+   * Layout for entries held until they are synced: the searched attributes
+   * and the uid, values of ldap.compact.shared-attributes are pooled.
+   */
+  public CompactEntryLayout createCompactLayout()
+  {
+    String[] attributeNames = getSearchAttributeNames();
+    String[] layoutAttributeNames
+      = Arrays.copyOf(attributeNames, attributeNames.length + 1);
+    layoutAttributeNames[attributeNames.length] = config.getLdapUserId();
+    return new CompactEntryLayout(layoutAttributeNames,
+      config.getLdapCompactSharedAttributes());
+  }
+
+  /**
+   * the configured user attributes plus modifyTimestamp, which is needed
+   * for the sync watermark
+   */
+  private String[] getSearchAttributeNames()
+  {
+    String[] attributeNames = config.getLdapUserAttributeNames();
+
+    for (String attributeName : attributeNames)
+    {
+      if (TimestampUtil.MODIFY_TIMESTAMP.equalsIgnoreCase(attributeName.trim()))
+      {
+        return attributeNames;
       }
+    }
+
+    String[] searchAttributeNames
+      = Arrays.copyOf(attributeNames, attributeNames.length + 1);
+    searchAttributeNames[attributeNames.length]
+      = TimestampUtil.MODIFY_TIMESTAMP;
+    return searchAttributeNames;
+  }
+
+  private SearchScope getSearchScope()
+  {
+    String scope = config.getLdapScope();
+    SearchScope searchScope = SearchScope.SUB;
+
+    if ("one".equalsIgnoreCase(scope))
+    {
+      searchScope = SearchScope.ONE;
+    }
+    else if ("base".equalsIgnoreCase(scope))
+    {
+      searchScope = SearchScope.BASE;
+    }
+    else if ("subordinates".equalsIgnoreCase(scope))
+    {
+      searchScope = SearchScope.SUBORDINATE_SUBTREE;
+    }
+
+    return searchScope;
+  }
+
+  private int readPartition(String baseDn, String filter, String[] attributes,
+    Consumer<Entry> consumer) throws Exception
+  {
+    LOGGER.debug("partition base dn={}, filter={}", baseDn, filter);
+
+    EntryStreamListener listener = new EntryStreamListener(consumer);
+
+    LDAPConnectionPool pool = getConnectionPool();
+    LDAPConnection connection = pool.getConnection();
+
+    try
+    {
+      SearchRequest searchRequest = new SearchRequest(listener,
+        baseDn, getSearchScope(), filter, attributes);
 
-      int totalSourceEntries = 0;
       ASN1OctetString resumeCookie = null;
-      SimplePagedResultsControl responseControl = null;
+      SimplePagedResultsControl responseControl;
 
-      // int pagedResultSize = ldapConfig.getPagedResultSize() > 0
-      //   ? ldapConfig.getPagedResultSize() : 1000;
-      int pagedResultSize = 1000;
+      PagedResultsController pagedResultsController
+        = createPagedResultsController();
+      int pagedResultSize = pagedResultsController.getPageSize();
 
       do
       {
         searchRequest.setControls(
           new SimplePagedResultsControl(pagedResultSize, resumeCookie));
 
+        listener.startPage();
+        long pageStart = System.nanoTime();
         SearchResult sourceSearchResult = connection.search(searchRequest);
+        long pageNanos = System.nanoTime() - pageStart;
 
-        int sourceEntries = sourceSearchResult.getEntryCount();
-        totalSourceEntries += sourceEntries;
+        pagedResultSize = pagedResultsController.pageRead(
+          listener.getPageEntryCount(),
+          pageNanos - listener.getPageConsumerNanos(),
+          listener.getPageConsumerNanos());
 
-        if (sourceEntries > 0)
+        responseControl = SimplePagedResultsControl.get(sourceSearchResult);
+
+        if (responseControl != null)
         {
-          for (Entry entry : sourceSearchResult.getSearchEntries())
-          {
-            ldapEntryMap.put(
-              entry.getAttributeValue(
-                config.getLdapUserId()).trim().toLowerCase(), entry);
-          }
+          resumeCookie = responseControl.getCookie();
+        }
+      }
+      while (responseControl != null && responseControl.moreResultsToReturn());
+
+      pagedResultsController.logSummary();
+      LOGGER.debug("partition base dn={}, {} entries",
+        baseDn, listener.getEntryCount());
+
+      pool.releaseConnection(connection);
+    }
+    catch (LDAPException e)
+    {
+      pool.releaseConnectionAfterException(connection, e);
+      throw e;
+    }
+    catch (Exception | Error e)
+    {
+      pool.releaseDefunctConnection(connection);
+      throw e;
+    }
 
-          responseControl = SimplePagedResultsControl.get(sourceSearchResult);
+    return listener.getEntryCount();
+  }
 
-          if (responseControl != null)
+  private PagedResultsController createPagedResultsController()
+  {
+    return new PagedResultsController(
+      config.getLdapPagingMinSize(), config.getLdapPagingMaxSize(),
+      config.getLdapPagingInitialSize(), config.getLdapPagingTargetLatency(),
+      config.getLdapPagingMaxHeapUsage());
+  }
+
+  /**
+   * @return the current lastChangeNumber of the server changelog, or -1 if
+   * the server does not publish one
+   */
+  public long getLastChangeNumber() throws Exception
+  {
+    RootDSE rootDSE = getConnectionPool().getRootDSE();
+    Long lastChangeNumber = rootDSE == null ? null
+      : rootDSE.getAttributeValueAsLong("lastChangeNumber");
+    LOGGER.debug("lastChangeNumber={}", lastChangeNumber);
+    return lastChangeNumber == null ? -1 : lastChangeNumber;
+  }
+
+  /**
+   * @return true if the server changelog no longer holds all changes after
+   * lastChangeNumber (firstChangeNumber > lastChangeNumber + 1, or the
+   * changelog was reset below it)
+   */
+  public boolean isChangeLogTrimmed(long lastChangeNumber) throws Exception
+  {
+    RootDSE rootDSE = getConnectionPool().getRootDSE();
+    Long first = rootDSE == null ? null
+      : rootDSE.getAttributeValueAsLong("firstChangeNumber");
+    Long last = rootDSE == null ? null
+      : rootDSE.getAttributeValueAsLong("lastChangeNumber");
+    LOGGER.debug("firstChangeNumber={}, lastChangeNumber={}", first, last);
+
+    return (first != null && first > lastChangeNumber + 1)
+      || (last != null && last < lastChangeNumber);
+  }
+
+  /**
+   * Reads the server changelog (cn=changelog, draft-good-ldap-changelog or
+   * the retro changelog) after the given change number. Added, modified
+   * and renamed entries are read again and streamed to the consumer,
+   * deleted entries are reported by uid. Changelog records are streamed,
+   * only change number, type and DNs are kept of each, never the changes.
+   */
+  public LdapChangeSet readChangeLog(long lastChangeNumber,
+    Consumer<Entry> consumer) throws Exception
+  {
+    LdapChangeSet changeSet = new LdapChangeSet(lastChangeNumber);
+    ChangeLogListener listener = new ChangeLogListener();
+
+    String filter = "(changeNumber>=" + (lastChangeNumber + 1) + ")";
+    LOGGER.debug("changelog base dn={}, filter={}",
+      config.getLdapDeltaChangelogBaseDn(), filter);
+
+    getConnectionPool().search(new SearchRequest(listener,
+      config.getLdapDeltaChangelogBaseDn(), SearchScope.ONE, filter,
+      CHANGELOG_ATTRIBUTES));
+
+    List<ChangeRecord> changes = listener.getChanges();
+    changes.sort(Comparator.comparingLong(change -> change.changeNumber));
+    changeSet.setChangeCount(changes.size());
+    LOGGER.info("{} changelog records read", changes.size());
+
+    // normalized DN -> DN, in order of the changes
+    LinkedHashMap<String, String> changedDns = new LinkedHashMap<>();
+
+    for (ChangeRecord change : changes)
+    {
+      String targetDN = change.targetDN;
+      String normalizedDN = DN.normalize(targetDN);
+
+      switch (change.changeType)
+      {
+        case ADD:
+        case MODIFY:
+          changedDns.put(normalizedDN, targetDN);
+          break;
+
+        case DELETE:
+          changedDns.remove(normalizedDN);
+          addDeletedUid(changeSet, targetDN);
+          break;
+
+        case MODIFY_DN:
+          changedDns.remove(normalizedDN);
+          addDeletedUid(changeSet, targetDN);
+          String newDN = change.newDN;
+          if (newDN != null)
           {
-            resumeCookie = responseControl.getCookie();
+            changedDns.put(DN.normalize(newDN), newDN);
           }
+          break;
+      }
+
+      changeSet.setLastChangeNumber(
+        Math.max(changeSet.getLastChangeNumber(), change.changeNumber));
+    }
+
+    // the filter without a modifyTimestamp restriction
+    String entryFilter = new MessageFormat(
+      config.getLdapFilter()).format(new Object[]
+    {
+      new ASN1GeneralizedTime(0l).toString()
+    });
+
+    DN baseDN = new DN(config.getLdapBaseDn());
+    int entryCount = 0;
+
+    for (String dn : changedDns.values())
+    {
+      if (!new DN(dn).isDescendantOf(baseDN, true))
+      {
+        LOGGER.debug("ignoring change outside of base dn: {}", dn);
+        continue;
+      }
+
+      SearchResultEntry entry;
+
+      try
+      {
+        entry = getConnectionPool().searchForEntry(new SearchRequest(dn,
+          SearchScope.BASE, entryFilter, getSearchAttributeNames()));
+      }
+      catch (LDAPSearchException e)
+      {
+        if (e.getResultCode() != ResultCode.NO_SUCH_OBJECT)
+        {
+          throw e;
         }
+        entry = null;
       }
-      while (responseControl != null && responseControl.moreResultsToReturn());
 
-      if (totalSourceEntries == 0)
+      if (entry != null && entry.getAttributeValue(config.getLdapUserId())
+        != null)
       {
-        LOGGER.info("No entries to synchronize found");
+        entryCount++;
+        // still present, e.g. renamed but same uid
+        changeSet.getDeletedUids().remove(getUid(entry));
+        consumer.accept(entry);
       }
-      else
+    }
+
+    changeSet.setEntryCount(entryCount);
+    LOGGER.info("changelog: {} changed entries, {} deleted uids",
+      entryCount, changeSet.getDeletedUids().size());
+
+    return changeSet;
+  }
+
+  /**
+   * @return the lowercased uid from the RDN of the given DN, or null if the
+   * RDN does not contain the user id attribute
+   */
+  public String getUidFromDN(String dn) throws LDAPException
+  {
+    RDN rdn = new DN(dn).getRDN();
+    String uid = null;
+
+    if (rdn != null)
+    {
+      String[] names = rdn.getAttributeNames();
+      String[] values = rdn.getAttributeValues();
+
+      for (int i = 0; i < names.length; i++)
       {
-        LOGGER.
-          info("build list from source DNs, {} entries", totalSourceEntries);
+        if (names[i].equalsIgnoreCase(config.getLdapUserId()))
+        {
+          uid = values[i].trim().toLowerCase();
+        }
       }
     }
+
+    return uid;
+  }
+
+  private void addDeletedUid(LdapChangeSet changeSet, String dn)
+    throws LDAPException
+  {
+    String uid = getUidFromDN(dn);
+
+    if (uid != null)
+    {
+      changeSet.getDeletedUids().add(uid);
+    }
+    else
+    {
+      LOGGER.debug("no uid in rdn of deleted entry: {}", dn);
+      changeSet.setIncomplete(true);
+    }
+  }
+
+  /**
+   * Subscribes to all changes below ldap.base-dn with a persistent search
+   * (changes only, with entry change notifications). The subscription
+   * holds one pooled connection until it is closed.
+   */
+  public LdapPersistentSearch startPersistentSearch(
+    LdapChangeCoalescer coalescer) throws Exception
+  {
+    String filter = new MessageFormat(
+      config.getLdapFilter()).format(new Object[]
+    {
+      new ASN1GeneralizedTime(0l).toString()
+    });
+
+    LDAPConnectionPool pool = getConnectionPool();
+    LDAPConnection connection = pool.getConnection();
+
+    LdapPersistentSearch persistentSearch
+      = new LdapPersistentSearch(this, pool, connection, coalescer);
+
+    SearchRequest searchRequest = new SearchRequest(persistentSearch,
+      config.getLdapBaseDn(), getSearchScope(), filter,
+      getSearchAttributeNames());
+    searchRequest.setControls(new PersistentSearchRequestControl(
+      PersistentSearchChangeType.allChangeTypes(), true, true));
+
+    try
+    {
+      persistentSearch.start(searchRequest);
+    }
+    catch (LDAPException e)
+    {
+      pool.releaseConnectionAfterException(connection, e);
+      throw e;
+    }
+
+    return persistentSearch;
   }
 
   public void readAllLdapEntryUIDs() throws Throwable
@@ -203,6 +710,130 @@ public class LdapHandler
     printLdapEntriesMap();
   }
 
+  /**
+   * Keeps change number, type and DNs of each changelog record as it is
+   * received.
+   */
+  private static class ChangeLogListener implements SearchResultListener
+  {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public void searchEntryReturned(SearchResultEntry entry)
+    {
+      Long changeNumber = entry.getAttributeValueAsLong("changeNumber");
+      ChangeType changeType
+        = ChangeType.forName(entry.getAttributeValue("changeType"));
+      String targetDN = entry.getAttributeValue("targetDN");
+      String newRDN = entry.getAttributeValue("newRDN");
+      String newSuperior = entry.getAttributeValue("newSuperior");
+      String newDN = null;
+
+      if (changeNumber == null || changeType == null || targetDN == null)
+      {
+        LOGGER.warn("ignoring invalid changelog record {}", entry.getDN());
+        return;
+      }
+
+      if (changeType == ChangeType.MODIFY_DN && newRDN != null)
+      {
+        try
+        {
+          newDN = new DN(new RDN(newRDN), newSuperior != null
+            ? new DN(newSuperior) : new DN(targetDN).getParent()).toString();
+        }
+        catch (LDAPException e)
+        {
+          LOGGER.warn("invalid new DN in changelog record {}: {}",
+            entry.getDN(), e.getMessage());
+        }
+      }
+
+      changes.add(new ChangeRecord(changeNumber, changeType, targetDN,
+        newDN));
+    }
+
+    @Override
+    public void searchReferenceReturned(SearchResultReference reference)
+    {
+      LOGGER.debug("ignoring search reference {}", reference);
+    }
+
+    @Getter
+    private final transient List<ChangeRecord> changes = new ArrayList<>();
+  }
+
+  private static class ChangeRecord
+  {
+    ChangeRecord(long changeNumber, ChangeType changeType, String targetDN,
+      String newDN)
+    {
+      this.changeNumber = changeNumber;
+      this.changeType = changeType;
+      this.targetDN = targetDN;
+      this.newDN = newDN;
+    }
+
+    private final long changeNumber;
+
+    private final ChangeType changeType;
+
+    private final String targetDN;
+
+    /**
+     * DN after a MODIFY_DN, otherwise null
+     */
+    private final String newDN;
+  }
+
+  private static class EntryStreamListener implements SearchResultListener
+  {
+    private static final long serialVersionUID = 1L;
+
+    EntryStreamListener(Consumer<Entry> consumer)
+    {
+      this.consumer = consumer;
+    }
+
+    void startPage()
+    {
+      pageEntryCount = 0;
+      pageConsumerNanos = 0;
+    }
+
+    @Override
+    public void searchEntryReturned(SearchResultEntry entry)
+    {
+      entryCount++;
+      pageEntryCount++;
+      long start = System.nanoTime();
+      consumer.accept(entry);
+      pageConsumerNanos += System.nanoTime() - start;
+    }
+
+    @Override
+    public void searchReferenceReturned(SearchResultReference reference)
+    {
+      LOGGER.debug("ignoring search reference {}", reference);
+    }
+
+    private final transient Consumer<Entry> consumer;
+
+    @Getter
+    private int entryCount;
+
+    @Getter
+    private int pageEntryCount;
+
+    @Getter
+    private long pageConsumerNanos;
+  }
+
   @Getter
-  private final HashMap<String, Entry> ldapEntryMap = new HashMap<>();
+  private final HashMap<String, CompactLdapEntry> ldapEntryMap
+    = new HashMap<>();
+
+  private LDAPConnectionPool connectionPool;
+
+  private SSLSocketFactory sslSocketFactory;
 }
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import com.unboundid.ldap.sdk.AsyncRequestID;
+import com.unboundid.ldap.sdk.AsyncSearchResultListener;
+import com.unboundid.ldap.sdk.LDAPConnection;
+import com.unboundid.ldap.sdk.LDAPConnectionPool;
+import com.unboundid.ldap.sdk.LDAPException;
+import com.unboundid.ldap.sdk.SearchRequest;
+import com.unboundid.ldap.sdk.SearchResult;
+import com.unboundid.ldap.sdk.SearchResultEntry;
+import com.unboundid.ldap.sdk.SearchResultReference;
+import com.unboundid.ldap.sdk.controls.EntryChangeNotificationControl;
+import com.unboundid.ldap.sdk.controls.PersistentSearchChangeType;
+import java.io.Closeable;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A running persistent search subscription. Every returned entry is handed
+ * to a LdapChangeCoalescer, the subscription ends when the connection is
+ * lost or it is closed.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class LdapPersistentSearch implements AsyncSearchResultListener,
+  Closeable
+{
+  private static final long serialVersionUID = 1L;
+
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(LdapPersistentSearch.class);
+
+  LdapPersistentSearch(LdapHandler ldapHandler, LDAPConnectionPool pool,
+    LDAPConnection connection, LdapChangeCoalescer coalescer)
+  {
+    this.ldapHandler = ldapHandler;
+    this.pool = pool;
+    this.connection = connection;
+    this.coalescer = coalescer;
+  }
+
+  void start(SearchRequest searchRequest) throws LDAPException
+  {
+    requestID = connection.asyncSearch(searchRequest);
+    LOGGER.info("persistent search started on {}",
+      connection.getConnectedAddress());
+  }
+
+  public boolean isActive()
+  {
+    return requestID != null && !requestID.isDone();
+  }
+
+  @Override
+  public void searchEntryReturned(SearchResultEntry entry)
+  {
+    try
+    {
+      String uid = ldapHandler.getUid(entry);
+      EntryChangeNotificationControl changeControl
+        = EntryChangeNotificationControl.get(entry);
+
+      PersistentSearchChangeType changeType = (changeControl != null)
+        ? changeControl.getChangeType() : PersistentSearchChangeType.MODIFY;
+
+      LOGGER.debug("{} {}", changeType, entry.getDN());
+
+      if (changeType == PersistentSearchChangeType.DELETE)
+      {
+        coalescer.deleted(uid);
+      }
+      else
+      {
+        if (changeType == PersistentSearchChangeType.MODIFY_DN
+          && changeControl.getPreviousDN() != null)
+        {
+          String previousUid
+            = ldapHandler.getUidFromDN(changeControl.getPreviousDN());
+
+          if (previousUid != null && !previousUid.equals(uid))
+          {
+            coalescer.deleted(previousUid);
+          }
+        }
+
+        coalescer.changed(uid, entry);
+      }
+    }
+    catch (Exception e)
+    {
+      LOGGER.error("ignoring persistent search entry {}: {}",
+        entry.getDN(), e.getMessage());
+    }
+  }
+
+  @Override
+  public void searchReferenceReturned(SearchResultReference reference)
+  {
+    LOGGER.debug("ignoring search reference {}", reference);
+  }
+
+  @Override
+  public void searchResultReceived(AsyncRequestID requestID,
+    SearchResult searchResult)
+  {
+    LOGGER.debug("persistent search done: {}", searchResult);
+    result = searchResult;
+  }
+
+  @Override
+  public void close()
+  {
+    if (isActive())
+    {
+      try
+      {
+        connection.abandon(requestID);
+      }
+      catch (LDAPException e)
+      {
+        LOGGER.debug("abandon failed: {}", e.getMessage());
+      }
+    }
+
+    // the connection may still carry responses of the abandoned search
+    pool.releaseDefunctConnection(connection);
+  }
+
+  private final transient LdapHandler ldapHandler;
+
+  private final transient LDAPConnectionPool pool;
+
+  private final transient LDAPConnection connection;
+
+  private final transient LdapChangeCoalescer coalescer;
+
+  private transient AsyncRequestID requestID;
+
+  @Getter
+  private transient volatile SearchResult result;
+}
@@ -15,20 +15,38 @@
  */
 package l9g.app.ldap2moodle.handler;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import l9g.app.ldap2moodle.Config;
 import l9g.app.ldap2moodle.model.MoodleAnonymousUser;
 import l9g.app.ldap2moodle.model.MoodleRole;
 import l9g.app.ldap2moodle.model.MoodleUser;
+import l9g.app.ldap2moodle.state.MoodleUserMirror;
+import l9g.app.ldap2moodle.state.UidIndex;
 import lombok.Getter;
+import lombok.Setter;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import l9g.app.ldap2moodle.services.MoodleCall;
+import l9g.app.ldap2moodle.services.MoodleReactiveService;
 import l9g.app.ldap2moodle.services.MoodleService;
 
 /**
@@ -47,6 +65,9 @@ public class MoodleHandler
   @Autowired
   private MoodleService moodleService;
 
+  @Autowired
+  private MoodleReactiveService moodleReactiveService;
+
   @Bean
   public MoodleHandler moodleHandlerBean()
   {
@@ -74,91 +95,1107 @@ public class MoodleHandler
     return adminGroupId;
   }
 
-  public void readMoodleUsers()
+  public void readMoodleUsers() throws InterruptedException
   {
     LOGGER.debug("readMoodleUsers");
 
-    moodleUsersList = moodleService.users();
+    moodleUsersMap.clear();
+
+    if (moodleUserMirror != null && !moodleUserMirror.isVerifyDue(
+      config.getMoodleMirrorVerifyInterval() * 3600000l))
+    {
+      LOGGER.info("{} Moodle users from mirror", moodleUserMirror.size());
+      return;
+    }
+
+    Consumer<MoodleUser> consumer;
+
+    if (uidIndex != null)
+    {
+      uidIndex.clearFlag(UidIndex.FLAG_MOODLE);
+      consumer = user -> indexUser(user);
+    }
+    else
+    {
+      consumer = user -> moodleUsersMap.put(user.getUsername(), user);
+    }
+
+    AtomicInteger mirrorChanges = new AtomicInteger();
 
-    if (moodleUsersList != null)
+    if (moodleUserMirror != null)
     {
-      moodleUsersMap.clear();
-      moodleUsersList.
-        forEach(user -> moodleUsersMap.put(user.getUsername(), user));
+      // verification pass, the mirror is corrected while reading
+      moodleUserMirror.beginVerify();
+      consumer = consumer.andThen(user ->
+      {
+        if (mirror(user))
+        {
+          mirrorChanges.incrementAndGet();
+        }
+      });
+    }
+
+    int count = readAllUsers(consumer);
+    LOGGER.info("{} Moodle users read", count);
+
+    if (moodleUserMirror != null)
+    {
+      int removed = moodleUserMirror.endVerify();
+      LOGGER.info("mirror verified: {} users new or changed, {} removed",
+        mirrorChanges.get(), removed);
     }
   }
 
-  public MoodleUser createUser(MoodleUser user)
+  /**
+   * Reads the users with the given ids from Moodle in batches of
+   * moodle.delta-lookup.batch-size, neither the map nor the uid index or
+   * the mirror is touched.
+   *
+   * @return number of users read
+   */
+  public int readMoodleUsersById(List<Integer> ids,
+    Consumer<MoodleUser> consumer) throws InterruptedException
   {
-    if (config.isDryRun())
+    int batchSize = Math.max(1, config.getMoodleDeltaLookupBatchSize());
+    int count = 0;
+
+    for (int i = 0; i < ids.size(); i += batchSize)
     {
-      LOGGER.debug("CREATE DRY RUN: " + user);
+      count += moodleService.usersByField("id", ids.subList(i,
+        Math.min(ids.size(), i + batchSize)).stream()
+        .map(String::valueOf).toList(), consumer);
+    }
+
+    return count;
+  }
+
+  private int readAllUsers(Consumer<MoodleUser> consumer)
+    throws InterruptedException
+  {
+    Consumer<MoodleUser> idConsumer
+      = consumer.andThen(user -> raiseMaxMoodleId(user.getId()));
+
+    return config.isMoodleFetchPartitioned()
+      ? moodleService.usersPartitioned(idConsumer, maxMoodleId)
+      : moodleService.users(idConsumer);
+  }
+
+  private synchronized void raiseMaxMoodleId(Integer id)
+  {
+    if (id != null && id > maxMoodleId)
+    {
+      maxMoodleId = id;
+    }
+  }
+
+  /**
+   * @return true if the user was new or changed in the mirror
+   */
+  private boolean mirror(MoodleUser user)
+  {
+    try
+    {
+      return moodleUserMirror.put(user);
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Looks up the given users in Moodle and adds them to the map (or the
+   * uid index), users not found are removed.
+   */
+  public void lookupMoodleUsers(List<String> usernames)
+  {
+    LOGGER.debug("lookupMoodleUsers {}", usernames.size());
+    Set<String> missing = new HashSet<>(usernames);
+
+    try
+    {
+      moodleService.usersByField("username", usernames, user ->
+      {
+        missing.remove(user.getUsername());
+        storeUser(user);
+      });
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("lookup interrupted", e);
+    }
+
+    removeUsers(missing);
+  }
+
+  /**
+   * Responses of asynchronous requests may change the users concurrently.
+   */
+  private synchronized void storeUser(MoodleUser user)
+  {
+    raiseMaxMoodleId(user.getId());
+
+    if (moodleUserMirror != null)
+    {
+      mirror(user);
+    }
+
+    if (uidIndex != null)
+    {
+      indexUser(user);
     }
     else
     {
-      LOGGER.debug("CREATE: " + user);
-      try
+      moodleUsersMap.put(user.getUsername(), user);
+    }
+  }
+
+  private synchronized void removeUsers(Set<String> usernames)
+  {
+    for (String username : usernames)
+    {
+      if (moodleUserMirror != null)
       {
-        user = moodleService.usersCreate(user);
+        moodleUserMirror.remove(username);
       }
-      catch (Throwable t)
+
+      if (uidIndex != null)
+      {
+        uidIndex.clearFlag(username, UidIndex.FLAG_MOODLE);
+      }
+      else
       {
-        LOGGER.error("*** CREATE FAILED *** " + t.getMessage());
+        moodleUsersMap.remove(username);
       }
     }
+  }
+
+  /**
+   * @return all Moodle users, with the mirror enabled only the mirrored
+   * fields are set, empty if only the uid index is kept
+   */
+  public Collection<MoodleUser> getMoodleUsers()
+  {
+    return (moodleUserMirror != null)
+      ? moodleUserMirror.getUsers() : moodleUsersMap.values();
+  }
+
+  /**
+   * @return the Moodle id of the user, -1 if the user does not exist
+   */
+  public synchronized int getMoodleUserId(String username)
+  {
+    if (uidIndex != null)
+    {
+      return uidIndex.getMoodleId(username);
+    }
+
+    if (moodleUserMirror != null)
+    {
+      return moodleUserMirror.getMoodleId(username);
+    }
 
-    return user;
+    MoodleUser user = moodleUsersMap.get(username);
+    return (user != null && user.getId() != null) ? user.getId() : -1;
   }
 
-  public MoodleUser updateUser(MoodleUser user)
+  private void indexUser(MoodleUser user)
+  {
+    try
+    {
+      uidIndex.putMoodleId(user.getUsername(), user.getId());
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Queues the user for creation, the queue is sent as one batch when it
+   * reaches moodle.create.batch-size or on flushAll().
+   *
+   * @param callback receives the created user (with id) or null if the
+   * creation failed
+   */
+  public synchronized void createUser(MoodleUser user,
+    Consumer<MoodleUser> callback)
   {
     if (config.isDryRun())
     {
-      LOGGER.debug("UPDATE DRY RUN: " + user);
+      LOGGER.debug("CREATE DRY RUN: " + user);
+      callback.accept(user);
+      return;
     }
-    else
+
+    LOGGER.debug("CREATE: " + user);
+    pendingCreates.add(new PendingCreate(user, callback));
+
+    if (pendingCreates.size() >= Math.max(1, config.getMoodleCreateBatchSize()))
     {
-      try
+      sendAll();
+    }
+  }
+
+  /**
+   * Sends all queued users to be created.
+   */
+  private void sendCreates()
+  {
+    if (pendingCreates.isEmpty())
+    {
+      return;
+    }
+
+    List<PendingCreate> batch = new ArrayList<>(pendingCreates);
+    pendingCreates.clear();
+
+    if (!config.isMoodleAsyncEnabled())
+    {
+      createBatch(batch);
+      return;
+    }
+
+    dispatch(batch.stream().map(pending -> pending.user.getUsername())
+      .toList(),
+      moodleReactiveService.post("core_user_create_users",
+        Map.of("users", createArguments(batch))),
+      result -> created(batch, MoodleService.parseCreatedUsers(result)),
+      t ->
+    {
+      LOGGER.warn("create batch of {} users failed, retrying: {}",
+        batch.size(), t.getMessage());
+      createBatch(batch);
+    });
+  }
+
+  /**
+   * Moodle rejects the whole batch if one user is invalid, a failed batch
+   * is split in halves until the failing users are isolated.
+   */
+  private void createBatch(List<PendingCreate> batch)
+  {
+    List<MoodleUser> createdUsers;
+
+    try
+    {
+      createdUsers = moodleService.usersCreate(createArguments(batch));
+    }
+    catch (Throwable t)
+    {
+      if (batch.size() > 1)
       {
-        LOGGER.debug("UPDATE: " + objectMapper.writeValueAsString(user));
-        user = moodleService.usersUpdate(user.getId(), user);
+        LOGGER.warn("create batch of {} users failed, splitting: {}",
+          batch.size(), t.getMessage());
+        int half = batch.size() / 2;
+        createBatch(batch.subList(0, half));
+        createBatch(batch.subList(half, batch.size()));
       }
-      catch (Throwable t)
+      else
       {
-        LOGGER.error("*** UPDATE FAILED *** " + t.getMessage());
+        LOGGER.error("*** CREATE FAILED *** {}: {}",
+          batch.get(0).user.getUsername(), t.getMessage());
+        batch.get(0).callback.accept(null);
       }
+
+      return;
     }
 
-    return user;
+    created(batch, createdUsers);
+  }
+
+  private static List<Map<String, Object>> createArguments(
+    List<PendingCreate> batch)
+  {
+    List<Map<String, Object>> users = new ArrayList<>(batch.size());
+    batch.forEach(pending -> users.add(MoodleUserDiff.fields(pending.user)));
+    return users;
   }
 
-  public void deleteUser(MoodleUser user)
+  private void created(List<PendingCreate> batch,
+    List<MoodleUser> createdUsers)
+  {
+    Map<String, Integer> createdIds = new HashMap<>();
+    createdUsers.forEach(
+      created -> createdIds.put(created.getUsername(), created.getId()));
+    LOGGER.debug("{} users created", createdIds.size());
+
+    for (PendingCreate pending : batch)
+    {
+      MoodleUser user = pending.user;
+      Integer id = createdIds.get(user.getUsername());
+
+      if (id == null)
+      {
+        LOGGER.error("*** CREATE FAILED *** {}: not in response",
+          user.getUsername());
+        pending.callback.accept(null);
+        continue;
+      }
+
+      user.setId(id);
+
+      if (moodleUserMirror != null)
+      {
+        mirror(user);
+      }
+
+      if (uidIndex != null)
+      {
+        indexUser(user);
+      }
+      else
+      {
+        moodleUsersMap.put(user.getUsername(), user);
+      }
+
+      pending.callback.accept(user);
+    }
+  }
+
+  /**
+   * Queues the changed fields of the user. The queue is sent as one batch
+   * when it reaches moodle.update.batch-size, when its oldest entry is
+   * older than moodle.update.max-delay or on flushAll(). Changes of a
+   * user already queued are merged.
+   *
+   * @param callback receives true if the update was applied
+   */
+  public synchronized void updateUser(String username, int id,
+    Map<String, Object> changes, Consumer<Boolean> callback)
   {
     if (config.isDryRun())
     {
-      LOGGER.debug("DELETE DRY RUN: " + user);
+      LOGGER.debug("UPDATE DRY RUN: {} {}", id, changes);
+      callback.accept(true);
+      return;
+    }
+
+    LOGGER.debug("UPDATE: {} {}", id, changes);
+
+    if (pendingUpdates.isEmpty())
+    {
+      firstPendingUpdate = System.currentTimeMillis();
+    }
+
+    PendingUpdate pending = pendingUpdates.get(id);
+
+    if (pending == null)
+    {
+      pendingUpdates.put(id,
+        new PendingUpdate(username, id, changes, callback));
+    }
+    else
+    {
+      pending.changes.putAll(changes);
+      pending.callback = pending.callback.andThen(callback);
+    }
+
+    if (pendingUpdates.size() >= Math.max(1, config.getMoodleUpdateBatchSize()))
+    {
+      sendAll();
     }
     else
     {
-      LOGGER.debug("DELETE: " + user);
+      flushUpdatesIfDue();
+    }
+  }
+
+  /**
+   * Sends the queued updates if the oldest one waits too long. Called for
+   * every synced entry and from the daemon's poll loop, so the delay also
+   * holds while no further updates are queued.
+   */
+  public synchronized void flushUpdatesIfDue()
+  {
+    if (!pendingUpdates.isEmpty() && System.currentTimeMillis()
+      - firstPendingUpdate >= config.getMoodleUpdateMaxDelay())
+    {
+      sendAll();
+    }
+  }
+
+  /**
+   * Sends all queued updates.
+   */
+  private void sendUpdates()
+  {
+    if (pendingUpdates.isEmpty())
+    {
+      return;
+    }
+
+    List<PendingUpdate> batch = new ArrayList<>(pendingUpdates.values());
+    pendingUpdates.clear();
+
+    if (!config.isMoodleAsyncEnabled())
+    {
+      updateBatch(batch);
+      return;
+    }
+
+    dispatch(batch.stream().map(pending -> pending.username).toList(),
+      moodleReactiveService.post("core_user_update_users",
+        Map.of("users", updateArguments(batch))),
+      result -> updated(batch, MoodleService.parseWarnings(result)),
+      t ->
+    {
+      LOGGER.warn("update batch of {} users failed, retrying: {}",
+        batch.size(), t.getMessage());
+      updateBatch(batch);
+    });
+  }
+
+  /**
+   * A request error fails the whole batch, it is split until the failing
+   * users are isolated. Users rejected by Moodle are reported through the
+   * warnings of the response.
+   */
+  private void updateBatch(List<PendingUpdate> batch)
+  {
+    Map<Integer, String> warnings;
+
+    try
+    {
+      warnings = moodleService.usersUpdate(updateArguments(batch));
+    }
+    catch (Throwable t)
+    {
+      if (batch.size() > 1)
+      {
+        LOGGER.warn("update batch of {} users failed, splitting: {}",
+          batch.size(), t.getMessage());
+        int half = batch.size() / 2;
+        updateBatch(batch.subList(0, half));
+        updateBatch(batch.subList(half, batch.size()));
+      }
+      else
+      {
+        LOGGER.error("*** UPDATE FAILED *** {}: {}",
+          batch.get(0).username, t.getMessage());
+        batch.get(0).callback.accept(false);
+      }
+
+      return;
+    }
+
+    updated(batch, warnings);
+  }
+
+  private static List<Map<String, Object>> updateArguments(
+    List<PendingUpdate> batch)
+  {
+    List<Map<String, Object>> users = new ArrayList<>(batch.size());
+
+    for (PendingUpdate pending : batch)
+    {
+      Map<String, Object> user = new LinkedHashMap<>();
+      user.put("id", pending.id);
+      user.putAll(pending.changes);
+      users.add(user);
+    }
+
+    return users;
+  }
+
+  private void updated(List<PendingUpdate> batch,
+    Map<Integer, String> warnings)
+  {
+    LOGGER.debug("{} users updated, {} warnings", batch.size(),
+      warnings.size());
+
+    for (PendingUpdate pending : batch)
+    {
+      String warning = warnings.get(pending.id);
+
+      if (warning != null)
+      {
+        LOGGER.error("*** UPDATE FAILED *** {}: {}", pending.username,
+          warning);
+        pending.callback.accept(false);
+        continue;
+      }
+
+      MoodleUser mirrored = (moodleUserMirror != null)
+        ? moodleUserMirror.get(pending.username) : null;
+
+      if (mirrored != null)
+      {
+        MoodleUserDiff.apply(mirrored, pending.changes);
+        mirror(mirrored);
+      }
+
+      pending.callback.accept(true);
+    }
+  }
+
+  /**
+   * @return the user as read from Moodle, null if unknown or if only the
+   * uid index is kept
+   */
+  public synchronized MoodleUser getMoodleUser(String username)
+  {
+    return moodleUsersMap.get(username);
+  }
+
+  /**
+   * Sets auth (and suspended) of the users which have none, from the map,
+   * the mirror or, for the rest, with core_user_get_users_by_field in
+   * batches of moodle.delta-lookup.batch-size. Users Moodle does not know
+   * keep auth null.
+   */
+  public void lookupAuth(List<MoodleUser> users)
+  {
+    Map<String, MoodleUser> unknown = new LinkedHashMap<>();
+
+    for (MoodleUser user : users)
+    {
+      if (user.getAuth() != null)
+      {
+        continue;
+      }
+
+      MoodleUser known = getMoodleUser(user.getUsername());
+
+      if (known == null && moodleUserMirror != null)
+      {
+        known = moodleUserMirror.get(user.getUsername());
+      }
+
+      if (known != null && known.getAuth() != null)
+      {
+        copyAuth(known, user);
+      }
+      else
+      {
+        unknown.put(user.getUsername(), user);
+      }
+    }
+
+    List<String> usernames = new ArrayList<>(unknown.keySet());
+    int batchSize = Math.max(1, config.getMoodleDeltaLookupBatchSize());
+    LOGGER.debug("lookupAuth {}", usernames.size());
+
+    try
+    {
+      for (int i = 0; i < usernames.size(); i += batchSize)
+      {
+        moodleService.usersByField("username", usernames.subList(i,
+          Math.min(usernames.size(), i + batchSize)), found ->
+        {
+          MoodleUser user = unknown.get(found.getUsername());
+
+          if (user != null)
+          {
+            copyAuth(found, user);
+          }
+        });
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("lookup interrupted", e);
+    }
+  }
+
+  private static void copyAuth(MoodleUser from, MoodleUser to)
+  {
+    to.setAuth(from.getAuth());
+
+    if (to.getSuspended() == null)
+    {
+      to.setSuspended(from.getSuspended());
+    }
+  }
+
+  /**
+   * Deprovisions the user according to moodle.deprovision.mode. Suspend
+   * and anonymize are queued as updates, deletes are sent in batches of
+   * moodle.deprovision.batch-size or on flushAll().
+   *
+   * @param callback receives true if the user was deprovisioned
+   */
+  public synchronized void deleteUser(MoodleUser user,
+    Consumer<Boolean> callback)
+  {
+    String mode = config.getMoodleDeprovisionMode();
+    String username = user.getUsername();
+
+    switch (mode)
+    {
+      case "suspend":
+        updateUser(username, user.getId(), Map.of("suspended", true),
+          callback);
+        break;
+
+      case "anonymize":
+        Map<String, Object> fields = objectMapper.convertValue(
+          new MoodleAnonymousUser(user.getId()), MAP_TYPE);
+        updateUser(username, user.getId(), fields, success ->
+        {
+          if (success && !config.isDryRun())
+          {
+            forgetUser(username);
+          }
+
+          callback.accept(success);
+        });
+        break;
+
+      case "delete":
+        if (config.isDryRun())
+        {
+          LOGGER.debug("DELETE DRY RUN: " + user);
+          callback.accept(true);
+          return;
+        }
+
+        LOGGER.debug("DELETE: " + user);
+        pendingDeletes.add(new PendingDelete(username, user.getId(),
+          callback));
+
+        if (pendingDeletes.size()
+          >= Math.max(1, config.getMoodleDeprovisionBatchSize()))
+        {
+          sendAll();
+        }
+        break;
+
+      default:
+        throw new IllegalStateException(
+          "unknown moodle.deprovision.mode: " + mode);
+    }
+  }
+
+  /**
+   * Sends all queued users to be deleted.
+   */
+  private void sendDeletes()
+  {
+    if (pendingDeletes.isEmpty())
+    {
+      return;
+    }
+
+    List<PendingDelete> batch = new ArrayList<>(pendingDeletes);
+    pendingDeletes.clear();
+
+    if (!config.isMoodleAsyncEnabled())
+    {
+      deleteBatch(batch);
+      return;
+    }
+
+    dispatch(batch.stream().map(pending -> pending.username).toList(),
+      moodleReactiveService.post("core_user_delete_users",
+        Map.of("userids", deleteArguments(batch))),
+      result -> deleted(batch),
+      t ->
+    {
+      LOGGER.warn("delete batch of {} users failed, retrying: {}",
+        batch.size(), t.getMessage());
+      deleteBatch(batch);
+    });
+  }
+
+  private void deleteBatch(List<PendingDelete> batch)
+  {
+    try
+    {
+      moodleService.usersDelete(deleteArguments(batch));
+    }
+    catch (Throwable t)
+    {
+      if (batch.size() > 1)
+      {
+        LOGGER.warn("delete batch of {} users failed, splitting: {}",
+          batch.size(), t.getMessage());
+        int half = batch.size() / 2;
+        deleteBatch(batch.subList(0, half));
+        deleteBatch(batch.subList(half, batch.size()));
+      }
+      else
+      {
+        LOGGER.error("*** DELETE FAILED *** {}: {}",
+          batch.get(0).username, t.getMessage());
+        batch.get(0).callback.accept(false);
+      }
+
+      return;
+    }
+
+    deleted(batch);
+  }
+
+  private static List<Integer> deleteArguments(List<PendingDelete> batch)
+  {
+    return batch.stream().map(pending -> pending.id).toList();
+  }
+
+  private void deleted(List<PendingDelete> batch)
+  {
+    LOGGER.debug("{} users deleted", batch.size());
+
+    for (PendingDelete pending : batch)
+    {
+      forgetUser(pending.username);
+      pending.callback.accept(true);
+    }
+  }
+
+  /**
+   * Sends all queued creates, updates and deletes and waits for the
+   * answers of all open requests.
+   */
+  public synchronized void flushAll()
+  {
+    sendAll();
+
+    try
+    {
+      while (inFlight > 0)
+      {
+        wait();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("flush interrupted", e);
+    }
+  }
+
+  /**
+   * Sends all queued creates, updates and deletes. With
+   * moodle.multi-call.enabled they are sent together in one request, a
+   * failed call falls back to its own request, which splits the batch
+   * until the failing users are isolated.
+   */
+  private void sendAll()
+  {
+    if (!config.isMoodleMultiCallEnabled())
+    {
+      sendCreates();
+      sendUpdates();
+      sendDeletes();
+      return;
+    }
+
+    List<PendingCreate> creates = new ArrayList<>(pendingCreates);
+    List<PendingUpdate> updates = new ArrayList<>(pendingUpdates.values());
+    List<PendingDelete> deletes = new ArrayList<>(pendingDeletes);
+    pendingCreates.clear();
+    pendingUpdates.clear();
+    pendingDeletes.clear();
+
+    MoodleCall createCall = creates.isEmpty() ? null : new MoodleCall(
+      "core_user_create_users", Map.of("users", createArguments(creates)));
+    MoodleCall updateCall = updates.isEmpty() ? null : new MoodleCall(
+      "core_user_update_users", Map.of("users", updateArguments(updates)));
+    MoodleCall deleteCall = deletes.isEmpty() ? null : new MoodleCall(
+      "core_user_delete_users", Map.of("userids", deleteArguments(deletes)));
+
+    List<MoodleCall> calls = new ArrayList<>();
+
+    for (MoodleCall call : new MoodleCall[]
+    {
+      createCall, updateCall, deleteCall
+    })
+    {
+      if (call != null)
+      {
+        calls.add(call);
+      }
+    }
+
+    if (calls.isEmpty())
+    {
+      return;
+    }
+
+    // calls without a response (request failed, response unreadable or
+    // not executed after a failed call) are sent alone, calls which were
+    // answered are never sent again
+    Runnable complete = () ->
+    {
+      if (createCall != null)
+      {
+        if (!createCall.isAnswered())
+        {
+          LOGGER.debug("create call unanswered, sending it alone");
+          createBatch(creates);
+        }
+        else if (createCall.isFailed())
+        {
+          LOGGER.warn("create call failed: {}", createCall.getError());
+          createBatch(creates);
+        }
+        else
+        {
+          created(creates,
+            MoodleService.parseCreatedUsers(createCall.getResult()));
+        }
+      }
+
+      if (updateCall != null)
+      {
+        if (!updateCall.isAnswered())
+        {
+          LOGGER.debug("update call unanswered, sending it alone");
+          updateBatch(updates);
+        }
+        else if (updateCall.isFailed())
+        {
+          LOGGER.warn("update call failed: {}", updateCall.getError());
+          updateBatch(updates);
+        }
+        else
+        {
+          updated(updates,
+            MoodleService.parseWarnings(updateCall.getResult()));
+        }
+      }
+
+      if (deleteCall != null)
+      {
+        if (!deleteCall.isAnswered())
+        {
+          LOGGER.debug("delete call unanswered, sending it alone");
+          deleteBatch(deletes);
+        }
+        else if (deleteCall.isFailed())
+        {
+          LOGGER.warn("delete call failed: {}", deleteCall.getError());
+          deleteBatch(deletes);
+        }
+        else
+        {
+          deleted(deletes);
+        }
+      }
+    };
+
+    if (!config.isMoodleAsyncEnabled())
+    {
       try
       {
-        // moodleService.usersDelete(user.getId());
-        moodleService.usersAnonymize(user.getId(),
-          new MoodleAnonymousUser(user.getUsername()));
+        moodleService.callFunctions(calls);
       }
       catch (Throwable t)
       {
-        LOGGER.error("*** DELETE (Anonymize) FAILED *** " + t.getMessage());
+        LOGGER.warn("multi-call of {} functions failed, sending the "
+          + "unanswered calls alone: {}", calls.size(), t.getMessage());
       }
+
+      complete.run();
+      return;
+    }
+
+    List<String> usernames = new ArrayList<>();
+    creates.forEach(pending -> usernames.add(pending.user.getUsername()));
+    updates.forEach(pending -> usernames.add(pending.username));
+    deletes.forEach(pending -> usernames.add(pending.username));
+
+    Map<String, Object> arguments;
+
+    try
+    {
+      arguments = MoodleService.callFunctionsArguments(calls);
+    }
+    catch (JsonProcessingException e)
+    {
+      throw new IllegalArgumentException(e);
     }
+
+    dispatch(usernames, moodleReactiveService.post(
+      "tool_mobile_call_external_functions", arguments), body ->
+    {
+      try
+      {
+        MoodleService.parseResponses(calls, body);
+      }
+      catch (Throwable t)
+      {
+        LOGGER.warn("multi-call response unreadable, sending the "
+          + "unanswered calls alone: {}", t.getMessage());
+      }
+
+      complete.run();
+    }, t ->
+    {
+      LOGGER.warn("multi-call of {} functions failed, sending the "
+        + "unanswered calls alone: {}", calls.size(), t.getMessage());
+      complete.run();
+    });
   }
 
+  /**
+   * Subscribes the request as soon as fewer than moodle.async.max-in-flight
+   * requests are open and no open request contains one of the users, so
+   * the requests of a user are sent in order. Until then the caller, and
+   * with it the LDAP reader, is blocked. The result handlers run on a
+   * worker thread while holding the lock of the handler.
+   */
+  private <T> void dispatch(List<String> usernames, Mono<T> request,
+    Consumer<T> success, Consumer<Throwable> failure)
+  {
+    try
+    {
+      while (inFlight >= Math.max(1, config.getMoodleAsyncMaxInFlight())
+        || usernames.stream().anyMatch(inFlightUsers::contains))
+      {
+        wait();
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("dispatch interrupted", e);
+    }
+
+    inFlight++;
+    inFlightUsers.addAll(usernames);
+    LOGGER.debug("{} requests in flight", inFlight);
+
+    request.publishOn(Schedulers.boundedElastic()).subscribe(
+      result -> completed(usernames, () -> success.accept(result)),
+      t -> completed(usernames, () -> failure.accept(t)));
+  }
+
+  private synchronized void completed(List<String> usernames,
+    Runnable handler)
+  {
+    try
+    {
+      handler.run();
+    }
+    catch (Throwable t)
+    {
+      LOGGER.error("handling Moodle response failed", t);
+    }
+    finally
+    {
+      inFlight--;
+      inFlightUsers.removeAll(usernames);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Removes a deleted or renamed (anonymized) user from the map, the uid
+   * index and the mirror.
+   */
+  private void forgetUser(String username)
+  {
+    moodleUsersMap.remove(username);
+
+    if (uidIndex != null)
+    {
+      uidIndex.clearFlag(username, UidIndex.FLAG_MOODLE);
+    }
+
+    if (moodleUserMirror != null)
+    {
+      moodleUserMirror.remove(username);
+    }
+  }
+
+  private static class PendingCreate
+  {
+    PendingCreate(MoodleUser user, Consumer<MoodleUser> callback)
+    {
+      this.user = user;
+      this.callback = callback;
+    }
+
+    private final MoodleUser user;
+
+    private final Consumer<MoodleUser> callback;
+  }
+
+  private static class PendingUpdate
+  {
+    PendingUpdate(String username, int id, Map<String, Object> changes,
+      Consumer<Boolean> callback)
+    {
+      this.username = username;
+      this.id = id;
+      this.changes = new LinkedHashMap<>(changes);
+      this.callback = callback;
+    }
+
+    private final String username;
+
+    private final int id;
+
+    private final Map<String, Object> changes;
+
+    private Consumer<Boolean> callback;
+  }
+
+  private static class PendingDelete
+  {
+    PendingDelete(String username, int id, Consumer<Boolean> callback)
+    {
+      this.username = username;
+      this.id = id;
+      this.callback = callback;
+    }
+
+    private final String username;
+
+    private final int id;
+
+    private final Consumer<Boolean> callback;
+  }
+
+  private static final TypeReference<LinkedHashMap<String, Object>> MAP_TYPE
+    = new TypeReference<>()
+  {
+  };
+
   private final ObjectMapper objectMapper = new ObjectMapper();
 
+  private final List<PendingCreate> pendingCreates = new ArrayList<>();
+
+  private final Map<Integer, PendingUpdate> pendingUpdates
+    = new LinkedHashMap<>();
+
+  private long firstPendingUpdate;
+
+  private final List<PendingDelete> pendingDeletes = new ArrayList<>();
+
+  /**
+   * open asynchronous requests and the users they contain
+   */
+  private int inFlight;
+
+  private final Set<String> inFlightUsers = new HashSet<>();
+
   @Getter
   private final Map<String, MoodleUser> moodleUsersMap = new HashMap<>();
 
+  /**
+   * highest Moodle id seen, partitioned reads go at least up to it
+   */
+  @Getter
+  @Setter
+  private volatile int maxMoodleId;
+
+  /**
+   * if set, Moodle ids are kept in the index instead of moodleUsersMap
+   */
+  @Getter
+  @Setter
+  private UidIndex uidIndex;
+
+  /**
+   * if set, create and update decisions are based on the mirror and all
+   * Moodle users are only read to verify it
+   */
   @Getter
-  private List<MoodleUser> moodleUsersList;
+  @Setter
+  private MoodleUserMirror moodleUserMirror;
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import l9g.app.ldap2moodle.model.MoodleUser;
+
+/**
+ * Field by field comparison of a mapped user with the current Moodle user.
+ * Only fields set by the mapping script (non empty) are compared, fields
+ * which core_user_update_users does not accept are ignored.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class MoodleUserDiff
+{
+  private static final Set<String> READ_ONLY_FIELDS = Set.of("id",
+    "fullname", "firstaccess", "lastaccess", "confirmed",
+    "profileimageurlsmall", "profileimageurl");
+
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+  private static final TypeReference<LinkedHashMap<String, Object>> MAP_TYPE
+    = new TypeReference<>()
+  {
+  };
+
+  private MoodleUserDiff()
+  {
+  }
+
+  /**
+   * @return all updatable fields of the user set by the mapping script
+   */
+  public static Map<String, Object> fields(MoodleUser user)
+  {
+    Map<String, Object> fields = OBJECT_MAPPER.convertValue(user, MAP_TYPE);
+    fields.keySet().removeAll(READ_ONLY_FIELDS);
+    return fields;
+  }
+
+  /**
+   * @param current user as read from Moodle, null if unknown
+   * @param mapped user filled by the mapping script
+   *
+   * @return changed fields with their new values, empty if there is no
+   * difference
+   */
+  public static Map<String, Object> diff(MoodleUser current,
+    MoodleUser mapped)
+  {
+    Map<String, Object> changes = fields(mapped);
+
+    if (current != null)
+    {
+      Map<String, Object> currentFields
+        = OBJECT_MAPPER.convertValue(current, MAP_TYPE);
+      changes.entrySet().removeIf(
+        e -> Objects.equals(e.getValue(), currentFields.get(e.getKey())));
+    }
+
+    return changes;
+  }
+
+  /**
+   * Applies the changes to the cached Moodle user, so later comparisons
+   * see the updated values.
+   */
+  public static void apply(MoodleUser current, Map<String, Object> changes)
+  {
+    try
+    {
+      OBJECT_MAPPER.updateValue(current, changes);
+    }
+    catch (JsonMappingException e)
+    {
+      throw new IllegalArgumentException(e);
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.handler;
+
+import java.util.ArrayList;
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Chooses the size of the next SimplePagedResultsControl page from the
+ * measured LDAP time of the previous page and the current heap usage.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class PagedResultsController
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(PagedResultsController.class);
+
+  public PagedResultsController(int minSize, int maxSize, int initialSize,
+    long targetLatency, double maxHeapUsage)
+  {
+    this.minSize = Math.max(1, minSize);
+    this.maxSize = Math.max(this.minSize, maxSize);
+    this.targetLatency = Math.max(1, targetLatency);
+    this.maxHeapUsage = maxHeapUsage;
+    this.pageSize = clamp(initialSize);
+  }
+
+  /**
+   * Records the timing of the page just read and adjusts the page size.
+   *
+   * @param entries number of entries returned with the page
+   * @param ldapNanos time spent waiting for and decoding the page, without
+   * the time spent in the entry consumer
+   * @param consumerNanos time spent in the entry consumer
+   *
+   * @return the size to request for the next page
+   */
+  public int pageRead(int entries, long ldapNanos, long consumerNanos)
+  {
+    long ldapMillis = ldapNanos / 1000000l;
+    double heapUsage = heapUsage();
+    int requestedSize = pageSize;
+    String decision = "keep";
+
+    if (heapUsage > maxHeapUsage)
+    {
+      pageSize = clamp(pageSize / 2);
+      decision = "heap";
+    }
+    else if (entries > 0)
+    {
+      double millisPerEntry = Math.max(0.001, (double) ldapNanos / 1000000d
+        / entries);
+      int idealSize = (int) Math.min(Integer.MAX_VALUE,
+        targetLatency / millisPerEntry);
+
+      // move halfway towards the ideal size, at most doubling per page
+      int nextSize = clamp(Math.min(pageSize * 2,
+        (int) (((long) pageSize + idealSize) / 2)));
+
+      if (nextSize > pageSize)
+      {
+        decision = "grow";
+      }
+      else if (nextSize < pageSize)
+      {
+        decision = "shrink";
+      }
+
+      pageSize = nextSize;
+    }
+
+    PageTiming timing = new PageTiming(pageTimings.size() + 1, requestedSize,
+      entries, ldapMillis, consumerNanos / 1000000l, heapUsage, decision,
+      pageSize);
+    pageTimings.add(timing);
+    LOGGER.debug("{}", timing);
+
+    return pageSize;
+  }
+
+  public void logSummary()
+  {
+    if (!pageTimings.isEmpty())
+    {
+      long totalMillis = 0;
+      long maxMillis = 0;
+
+      for (PageTiming timing : pageTimings)
+      {
+        totalMillis += timing.getLdapMillis();
+        maxMillis = Math.max(maxMillis, timing.getLdapMillis());
+      }
+
+      LOGGER.info(
+        "paged search: {} pages, ldap time {}ms (avg {}ms, max {}ms), "
+        + "last page size {}", pageTimings.size(), totalMillis,
+        totalMillis / pageTimings.size(), maxMillis, pageSize);
+    }
+  }
+
+  private int clamp(int size)
+  {
+    return Math.max(minSize, Math.min(maxSize, size));
+  }
+
+  private static double heapUsage()
+  {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    return (double) used / runtime.maxMemory();
+  }
+
+  @Getter
+  @ToString
+  @AllArgsConstructor
+  public static class PageTiming
+  {
+    private final int page;
+
+    private final int requestedSize;
+
+    private final int entries;
+
+    private final long ldapMillis;
+
+    private final long consumerMillis;
+
+    private final double heapUsage;
+
+    private final String decision;
+
+    private final int nextSize;
+  }
+
+  private final int minSize;
+
+  private final int maxSize;
+
+  private final long targetLatency;
+
+  private final double maxHeapUsage;
+
+  @Getter
+  private int pageSize;
+
+  @Getter
+  private final List<PageTiming> pageTimings = new ArrayList<>();
+}
@@ -16,32 +16,48 @@
 package l9g.app.ldap2moodle.model;
 
 import com.fasterxml.jackson.annotation.JsonInclude;
-import java.util.Date;
-import java.util.List;
-import java.util.Map;
 import lombok.Getter;
 import lombok.ToString;
 
 /**
+ * Replacement values of an anonymized Moodle user, sent with
+ * core_user_update_users. The account is suspended and can no longer log
+ * in, all personal data is overwritten.
  *
  * @author Thorsten Ludewig (t.ludewig@gmail.com)
  */
 @ToString
 @Getter
-@JsonInclude(JsonInclude.Include.ALWAYS)
+@JsonInclude(JsonInclude.Include.NON_NULL)
 public class MoodleAnonymousUser
 {
-  public MoodleAnonymousUser(String login)
+  public static final String USERNAME_PREFIX = "anonymous-";
+
+  public MoodleAnonymousUser(int id)
   {
-    this.login = this.firstname = this.lastname = login;
-    this.email = login + "@anonymous.net";
-    this.department = this.fax = this.mobile
-      = this.note = this.phone = this.web = "";
+    this.username = USERNAME_PREFIX + id;
+    this.email = this.username + "@anonymous.invalid";
+    this.firstname = "Anonymous";
+    this.lastname = "User";
+    this.auth = "nologin";
+    this.suspended = true;
+    this.idnumber = this.department = this.institution = this.city
+      = this.description = "";
   }
 
-  private Integer organization_id;
+  /**
+   * @return true if the user already carries the anonymous username, or is
+   * suspended with auth nologin
+   */
+  public static boolean isAnonymized(MoodleUser user)
+  {
+    return (user.getUsername() != null
+      && user.getUsername().startsWith(USERNAME_PREFIX))
+      || (Boolean.TRUE.equals(user.getSuspended())
+      && "nologin".equals(user.getAuth()));
+  }
 
-  private final String login;
+  private final String username;
 
   private final String firstname;
 
@@ -49,49 +65,17 @@ public class MoodleAnonymousUser
 
   private final String email;
 
-  private Object image;
-
-  private Object image_source;
-
-  private final String web;
+  private final String auth;
 
-  private final String phone;
+  private final boolean suspended;
 
-  private final String fax;
-
-  private final String mobile;
+  private final String idnumber;
 
   private final String department;
 
-  private boolean vip;
-
-  private boolean verified;
-
-  private boolean active;
-
-  private final String note;
-
-  private String source;
-
-  private boolean out_of_office;
-
-  private Date out_of_office_start_at;
-
-  private Date out_of_office_end_at;
-
-  private Integer out_of_office_replacement_id;
-
-  private MoodlePreferences preferences;
-
-  private List<String> roles;
-
-  private List<Integer> role_ids;
-
-  private List<Integer> organization_ids;
-
-  private List<Integer> authorization_ids;
+  private final String institution;
 
-  private List<Integer> overview_sorting_ids;
+  private final String city;
 
-  private Map<String, String[]> group_ids;
+  private final String description;
 }
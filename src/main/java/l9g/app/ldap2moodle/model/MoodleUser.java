@@ -48,15 +48,15 @@ public class MoodleUser
 
   private String department;
 
-  private int firstaccess;
+  private Integer firstaccess;
 
-  private int lastaccess;
+  private Integer lastaccess;
 
   private String auth;
 
-  private boolean suspended;
+  private Boolean suspended;
 
-  private boolean confirmed;
+  private Boolean confirmed;
 
   private String lang;
 
@@ -64,11 +64,11 @@ public class MoodleUser
 
   private String timezone;
 
-  private int mailformat;
+  private Integer mailformat;
 
   private String description;
 
-  private int descriptionformat;
+  private Integer descriptionformat;
 
   private String country;
 
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A single web service function call inside a multi-call envelope
+ * (tool_mobile_call_external_functions). The call succeeds or fails on its
+ * own, the outcome is set after MoodleService.callFunctions(). A call
+ * after a failed one is not executed and stays unanswered.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+@ToString(exclude = "arguments")
+public class MoodleCall
+{
+  /**
+   * @param arguments function arguments as nested maps and lists
+   */
+  public MoodleCall(String function, Object arguments)
+  {
+    this.function = function;
+    this.arguments = arguments;
+  }
+
+  public boolean isFailed()
+  {
+    return error != null;
+  }
+
+  void succeeded(JsonNode result)
+  {
+    this.result = result;
+    this.answered = true;
+  }
+
+  void failed(String error)
+  {
+    this.error = error;
+    this.answered = true;
+  }
+
+  private final String function;
+
+  private final Object arguments;
+
+  /**
+   * decoded response data, null if the function returns nothing
+   */
+  private JsonNode result;
+
+  /**
+   * error code and message, null if the call succeeded
+   */
+  private String error;
+
+  /**
+   * false if Moodle did not execute the call
+   */
+  private boolean answered;
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import java.net.SocketTimeoutException;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+import l9g.app.ldap2moodle.Config;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.RestClientResponseException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+/**
+ * Adaptive limit of the concurrent Moodle requests (additive increase,
+ * multiplicative decrease). After every moodle.limiter.sample-size
+ * requests the window grows by one if it was used up and the p95 latency
+ * stayed below moodle.limiter.target-p95. A p95 above the target, an
+ * HTTP 5xx or a timeout shrinks it by moodle.limiter.decrease-factor. The
+ * window stays between min and max and below the cap of the current time
+ * of day.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+public class MoodleConcurrencyLimiter
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(MoodleConcurrencyLimiter.class);
+
+  @Autowired
+  public MoodleConcurrencyLimiter(Config config)
+  {
+    this.enabled = config.isMoodleLimiterEnabled();
+    this.min = Math.max(1, config.getMoodleLimiterMin());
+    this.max = Math.max(min, config.getMoodleLimiterMax());
+    this.targetP95 = config.getMoodleLimiterTargetP95();
+    this.decreaseFactor = config.getMoodleLimiterDecreaseFactor();
+    this.samples = new long[Math.max(1, config.getMoodleLimiterSampleSize())];
+    this.timeCaps = parseTimeCaps(config.getMoodleLimiterTimeCaps());
+    this.limit = Math.max(min, Math.min(max, config.getMoodleLimiterInitial()));
+
+    if (decreaseFactor <= 0 || decreaseFactor >= 1)
+    {
+      throw new IllegalArgumentException(
+        "moodle.limiter.decrease-factor must be between 0 and 1");
+    }
+  }
+
+  /**
+   * Waits until the window has room for another request.
+   */
+  public void acquire()
+  {
+    if (!enabled)
+    {
+      return;
+    }
+
+    synchronized (this)
+    {
+      try
+      {
+        while (inFlight >= window())
+        {
+          wait();
+        }
+      }
+      catch (InterruptedException e)
+      {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("waiting for Moodle interrupted", e);
+      }
+
+      inFlight++;
+
+      if (inFlight >= window())
+      {
+        saturated = true;
+      }
+    }
+  }
+
+  /**
+   * @param start System.nanoTime() taken before the request was sent
+   * @param overload true if the request failed with HTTP 5xx or a timeout
+   */
+  public void release(long start, boolean overload)
+  {
+    if (!enabled)
+    {
+      return;
+    }
+
+    long latency = (System.nanoTime() - start) / 1000000l;
+
+    synchronized (this)
+    {
+      inFlight--;
+      samples[sampleCount++] = latency;
+
+      // requests sent before the last decrease do not decrease again
+      if (overload && start - lastDecrease > 0)
+      {
+        overloads++;
+      }
+
+      // an overload is answered at once, not after a full sample
+      if (overloads > 0 || sampleCount >= samples.length)
+      {
+        adjust();
+      }
+
+      notifyAll();
+    }
+  }
+
+  private void adjust()
+  {
+    long[] sorted = Arrays.copyOf(samples, sampleCount);
+    Arrays.sort(sorted);
+    long p95 = sorted[Math.max(0, (int) Math.ceil(sorted.length * 0.95) - 1)];
+    int previous = window();
+    int cap = cap();
+
+    if (overloads > 0 || p95 > targetP95)
+    {
+      limit = Math.max(min, Math.min(limit, cap) * decreaseFactor);
+      lastDecrease = System.nanoTime();
+      decreases++;
+      LOGGER.info("limiter: decrease {} -> {} (p95={}ms, target={}ms, "
+        + "overloads={}, samples={})", previous, window(), p95, targetP95,
+        overloads, sampleCount);
+    }
+    else if (saturated && limit < cap)
+    {
+      limit = Math.min(cap, limit + 1);
+      increases++;
+      LOGGER.info("limiter: increase {} -> {} (p95={}ms, target={}ms)",
+        previous, window(), p95, targetP95);
+    }
+    else
+    {
+      LOGGER.debug("limiter: keep {} (p95={}ms, saturated={}, cap={})",
+        previous, p95, saturated, cap);
+    }
+
+    sampleCount = 0;
+    overloads = 0;
+    saturated = false;
+  }
+
+  /**
+   * @return number of requests allowed in flight now
+   */
+  public synchronized int window()
+  {
+    return Math.max(min, Math.min((int) limit, cap()));
+  }
+
+  /**
+   * @return the smallest cap of the time ranges containing now, max if
+   * none does
+   */
+  private int cap()
+  {
+    LocalTime now = LocalTime.now();
+    int cap = max;
+
+    for (TimeCap timeCap : timeCaps)
+    {
+      if (timeCap.contains(now))
+      {
+        cap = Math.min(cap, timeCap.limit);
+      }
+    }
+
+    return Math.max(min, cap);
+  }
+
+  public synchronized void log(Logger logger)
+  {
+    if (enabled)
+    {
+      logger.info("moodle concurrency window={} (min={}, max={}, cap={}), "
+        + "increases={}, decreases={}", window(), min, max, cap(), increases,
+        decreases);
+    }
+  }
+
+  /**
+   * @return true for HTTP 5xx answers and timeouts, anywhere in the cause
+   * chain
+   */
+  public static boolean isOverload(Throwable t)
+  {
+    for (Throwable cause = t; cause != null; cause = cause.getCause())
+    {
+      if (cause instanceof TimeoutException
+        || cause instanceof SocketTimeoutException
+        || cause instanceof io.netty.handler.timeout.TimeoutException)
+      {
+        return true;
+      }
+
+      if (cause instanceof RestClientResponseException)
+      {
+        return ((RestClientResponseException) cause).getStatusCode()
+          .is5xxServerError();
+      }
+
+      if (cause instanceof WebClientResponseException)
+      {
+        return ((WebClientResponseException) cause).getStatusCode()
+          .is5xxServerError();
+      }
+    }
+
+    return false;
+  }
+
+  /**
+   * @param values entries like 07:00-18:00=4, a range may end after
+   * midnight
+   */
+  private static List<TimeCap> parseTimeCaps(String[] values)
+  {
+    List<TimeCap> timeCaps = new ArrayList<>();
+
+    if (values != null)
+    {
+      for (String value : values)
+      {
+        if (value == null || value.isBlank())
+        {
+          continue;
+        }
+
+        String[] rangeAndLimit = value.trim().split("=");
+        String[] range = rangeAndLimit[0].split("-");
+
+        if (rangeAndLimit.length != 2 || range.length != 2)
+        {
+          throw new IllegalArgumentException(
+            "invalid moodle.limiter.time-caps entry: " + value);
+        }
+
+        timeCaps.add(new TimeCap(LocalTime.parse(range[0].trim()),
+          LocalTime.parse(range[1].trim()),
+          Integer.parseInt(rangeAndLimit[1].trim())));
+      }
+    }
+
+    return timeCaps;
+  }
+
+  private static class TimeCap
+  {
+    TimeCap(LocalTime from, LocalTime to, int limit)
+    {
+      this.from = from;
+      this.to = to;
+      this.limit = limit;
+    }
+
+    boolean contains(LocalTime time)
+    {
+      return from.isBefore(to)
+        ? !time.isBefore(from) && time.isBefore(to)
+        : !time.isBefore(from) || time.isBefore(to);
+    }
+
+    private final LocalTime from;
+
+    private final LocalTime to;
+
+    private final int limit;
+  }
+
+  private final boolean enabled;
+
+  private final int min;
+
+  private final int max;
+
+  private final long targetP95;
+
+  private final double decreaseFactor;
+
+  private final List<TimeCap> timeCaps;
+
+  /**
+   * latencies in ms since the last decision
+   */
+  private final long[] samples;
+
+  private int sampleCount;
+
+  private int overloads;
+
+  /**
+   * the window was used up since the last decision
+   */
+  private boolean saturated;
+
+  private double limit;
+
+  private int inFlight;
+
+  private long lastDecrease = System.nanoTime();
+
+  private int increases;
+
+  private int decreases;
+}
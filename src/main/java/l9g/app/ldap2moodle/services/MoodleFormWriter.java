@@ -0,0 +1,263 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the arguments of a web service call as
+ * application/x-www-form-urlencoded body in Moodle's (PHP's) nested array
+ * syntax, e.g. users[0][customfields][1][value]=x. Maps and lists are
+ * walked directly, keys and values are percent encoded byte by byte into
+ * the stream. Booleans are sent as 1 and 0, null values are left out.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class MoodleFormWriter
+{
+  private static final int BUFFER_SIZE = 8192;
+
+  private static final int MAX_DEPTH = 16;
+
+  private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+  MoodleFormWriter(OutputStream output)
+  {
+    this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+  }
+
+  /**
+   * Writes token, response format, function and all arguments.
+   */
+  void write(String wsfunction, String wstoken, Map<String, ?> arguments)
+    throws IOException
+  {
+    writeParameter("wstoken", wstoken);
+    writeParameter("moodlewsrestformat", "json");
+    writeParameter("wsfunction", wsfunction);
+
+    for (Map.Entry<String, ?> entry : arguments.entrySet())
+    {
+      names[0] = entry.getKey();
+      writeValue(1, entry.getValue());
+    }
+
+    output.flush();
+  }
+
+  private void writeParameter(String name, String value) throws IOException
+  {
+    names[0] = name;
+    writeValue(1, value);
+  }
+
+  /**
+   * @param depth number of key segments in names and indexes
+   */
+  private void writeValue(int depth, Object value) throws IOException
+  {
+    if (value == null)
+    {
+      return;
+    }
+
+    if (value instanceof Map)
+    {
+      checkDepth(depth);
+
+      for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+      {
+        names[depth] = String.valueOf(entry.getKey());
+        writeValue(depth + 1, entry.getValue());
+      }
+
+      return;
+    }
+
+    if (value instanceof List)
+    {
+      checkDepth(depth);
+      List<?> list = (List<?>) value;
+
+      for (int i = 0; i < list.size(); i++)
+      {
+        names[depth] = null;
+        indexes[depth] = i;
+        writeValue(depth + 1, list.get(i));
+      }
+
+      return;
+    }
+
+    writeKey(depth);
+    output.write('=');
+
+    if (value instanceof Boolean)
+    {
+      output.write(((Boolean) value) ? '1' : '0');
+    }
+    else if (value instanceof Integer || value instanceof Long)
+    {
+      writeNumber(((Number) value).longValue());
+    }
+    else
+    {
+      writeEncoded(value.toString());
+    }
+  }
+
+  private void writeKey(int depth) throws IOException
+  {
+    if (first)
+    {
+      first = false;
+    }
+    else
+    {
+      output.write('&');
+    }
+
+    writeEncoded(names[0]);
+
+    for (int i = 1; i < depth; i++)
+    {
+      // [ and ] percent encoded
+      output.write('%');
+      output.write('5');
+      output.write('B');
+
+      if (names[i] != null)
+      {
+        writeEncoded(names[i]);
+      }
+      else
+      {
+        writeNumber(indexes[i]);
+      }
+
+      output.write('%');
+      output.write('5');
+      output.write('D');
+    }
+  }
+
+  private void writeNumber(long value) throws IOException
+  {
+    if (value < 0)
+    {
+      output.write('-');
+      value = -value;
+    }
+
+    int start = digits.length;
+
+    do
+    {
+      digits[--start] = (byte) ('0' + value % 10);
+      value /= 10;
+    }
+    while (value > 0);
+
+    output.write(digits, start, digits.length - start);
+  }
+
+  /**
+   * Percent encoding of the UTF-8 bytes, unreserved characters are kept
+   * and space becomes +.
+   */
+  private void writeEncoded(CharSequence text) throws IOException
+  {
+    int length = text.length();
+
+    for (int i = 0; i < length; i++)
+    {
+      int c = text.charAt(i);
+
+      if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_'
+        || c == '*')
+      {
+        output.write(c);
+      }
+      else if (c == ' ')
+      {
+        output.write('+');
+      }
+      else if (c < 0x80)
+      {
+        writeEscaped(c);
+      }
+      else if (c < 0x800)
+      {
+        writeEscaped(0xc0 | (c >> 6));
+        writeEscaped(0x80 | (c & 0x3f));
+      }
+      else if (Character.isHighSurrogate((char) c) && i + 1 < length
+        && Character.isLowSurrogate(text.charAt(i + 1)))
+      {
+        int codePoint = Character.toCodePoint((char) c, text.charAt(++i));
+        writeEscaped(0xf0 | (codePoint >> 18));
+        writeEscaped(0x80 | ((codePoint >> 12) & 0x3f));
+        writeEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+        writeEscaped(0x80 | (codePoint & 0x3f));
+      }
+      else if (Character.isSurrogate((char) c))
+      {
+        // unpaired surrogate, encoded as ? like String.getBytes()
+        writeEscaped('?');
+      }
+      else
+      {
+        writeEscaped(0xe0 | (c >> 12));
+        writeEscaped(0x80 | ((c >> 6) & 0x3f));
+        writeEscaped(0x80 | (c & 0x3f));
+      }
+    }
+  }
+
+  private void writeEscaped(int b) throws IOException
+  {
+    output.write('%');
+    output.write(HEX[(b >> 4) & 0x0f]);
+    output.write(HEX[b & 0x0f]);
+  }
+
+  private static void checkDepth(int depth)
+  {
+    if (depth >= MAX_DEPTH)
+    {
+      throw new IllegalArgumentException("arguments nested deeper than "
+        + MAX_DEPTH + " levels");
+    }
+  }
+
+  private final OutputStream output;
+
+  /**
+   * key segments of the current value, null where the segment is an index
+   */
+  private final String[] names = new String[MAX_DEPTH];
+
+  private final int[] indexes = new int[MAX_DEPTH];
+
+  private final byte[] digits = new byte[20];
+
+  private boolean first = true;
+}
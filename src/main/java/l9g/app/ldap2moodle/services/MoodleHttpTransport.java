@@ -0,0 +1,153 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import io.netty.channel.ChannelOption;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.function.Consumer;
+import javax.net.ssl.TrustManagerFactory;
+import l9g.app.ldap2moodle.Config;
+import l9g.app.ldap2moodle.handler.CryptoHandler;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.Http11SslContextSpec;
+import reactor.netty.http.Http2SslContextSpec;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Reactor Netty client shared by MoodleService and MoodleReactiveService:
+ * a pool of keep-alive connections to the Moodle host, gzip compressed
+ * responses, HTTP/2 where the server offers it and cached TLS sessions.
+ * Certificates are checked against moodle.http.trust-store, the JDK
+ * default trust store, or not at all with moodle.trust-all-certificates.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Component
+public class MoodleHttpTransport
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(MoodleHttpTransport.class);
+
+  @Autowired
+  public MoodleHttpTransport(Config config, CryptoHandler cryptoHandler)
+    throws IOException, GeneralSecurityException
+  {
+    this.config = config;
+    this.cryptoHandler = cryptoHandler;
+
+    ConnectionProvider connectionProvider = ConnectionProvider
+      .builder("moodle")
+      .maxConnections(Math.max(1, config.getMoodleHttpMaxConnections()))
+      .maxIdleTime(Duration.ofMillis(config.getMoodleHttpMaxIdleTime()))
+      .pendingAcquireTimeout(Duration.ofMillis(
+        config.getMoodleHttpResponseTimeout()))
+      .build();
+
+    HttpClient client = HttpClient.create(connectionProvider)
+      .compress(config.isMoodleHttpCompress())
+      .keepAlive(true)
+      .option(ChannelOption.CONNECT_TIMEOUT_MILLIS,
+        config.getMoodleHttpConnectTimeout())
+      .responseTimeout(Duration.ofMillis(
+        config.getMoodleHttpResponseTimeout()));
+
+    if (config.getMoodleBaseUrl().toLowerCase().startsWith("https:"))
+    {
+      TrustManagerFactory trustManagerFactory = trustManagerFactory();
+      Consumer<SslContextBuilder> tls = builder -> builder
+        .trustManager(trustManagerFactory)
+        .sessionCacheSize(config.getMoodleHttpTlsSessionCacheSize())
+        .sessionTimeout(config.getMoodleHttpTlsSessionTimeout());
+
+      if (config.isMoodleHttpHttp2())
+      {
+        // ALPN negotiates HTTP/2, servers without it get HTTP/1.1
+        client = client.protocol(HttpProtocol.H2, HttpProtocol.HTTP11)
+          .secure(spec -> spec.sslContext(
+          Http2SslContextSpec.forClient().configure(tls)));
+      }
+      else
+      {
+        client = client.secure(spec -> spec.sslContext(
+          Http11SslContextSpec.forClient().configure(tls)));
+      }
+    }
+
+    LOGGER.debug("max connections={}, compress={}, http2={}",
+      config.getMoodleHttpMaxConnections(), config.isMoodleHttpCompress(),
+      config.isMoodleHttpHttp2());
+
+    this.httpClient = client;
+  }
+
+  /**
+   * @return null for the JDK default trust store
+   */
+  private TrustManagerFactory trustManagerFactory()
+    throws IOException, GeneralSecurityException
+  {
+    if (config.isMoodleTrustAllCertificates())
+    {
+      LOGGER.warn("Moodle server certificate is not checked");
+      return InsecureTrustManagerFactory.INSTANCE;
+    }
+
+    String trustStore = config.getMoodleHttpTrustStore();
+
+    if (trustStore == null || trustStore.isBlank())
+    {
+      return null;
+    }
+
+    KeyStore keyStore
+      = KeyStore.getInstance(config.getMoodleHttpTrustStoreType());
+    String password
+      = cryptoHandler.decrypt(config.getMoodleHttpTrustStorePassword());
+
+    try (InputStream input = new FileInputStream(trustStore))
+    {
+      keyStore.load(input, (password == null || password.isEmpty())
+        ? null : password.toCharArray());
+    }
+
+    TrustManagerFactory trustManagerFactory = TrustManagerFactory
+      .getInstance(TrustManagerFactory.getDefaultAlgorithm());
+    trustManagerFactory.init(keyStore);
+    LOGGER.info("Moodle trust store {}", trustStore);
+
+    return trustManagerFactory;
+  }
+
+  private final Config config;
+
+  private final CryptoHandler cryptoHandler;
+
+  @Getter
+  private final HttpClient httpClient;
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import l9g.app.ldap2moodle.Config;
+import l9g.app.ldap2moodle.handler.CryptoHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.http.MediaType;
+import org.springframework.http.ReactiveHttpOutputMessage;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Non-blocking counterpart of MoodleService for the write requests, based
+ * on WebClient and Reactor Netty. Requests are only sent when the returned
+ * Mono is subscribed, the caller decides how many are in flight. Also
+ * streams large responses (the user download) to a blocking reader.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Service
+public class MoodleReactiveService
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(MoodleReactiveService.class);
+
+  private static final int MAX_IN_MEMORY_SIZE = 16 * 1024 * 1024;
+
+  private static final int INITIAL_BODY_SIZE = 8192;
+
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  @Autowired
+  public MoodleReactiveService(Config config, CryptoHandler cryptoHandler,
+    MoodleHttpTransport httpTransport, MoodleConcurrencyLimiter limiter,
+    WebClient.Builder webClientBuilder)
+  {
+    this.wstoken = cryptoHandler.decrypt(config.getMoodleToken());
+    this.config = config;
+    this.limiter = limiter;
+    this.uri = URI.create(config.getMoodleBaseUrl().trim());
+    this.webClient = webClientBuilder
+      .clientConnector(
+        new ReactorClientHttpConnector(httpTransport.getHttpClient()))
+      .codecs(codecs -> codecs.defaultCodecs()
+      .maxInMemorySize(MAX_IN_MEMORY_SIZE))
+      .build();
+  }
+
+  /**
+   * Posts token, function name and arguments as form, the form is encoded
+   * into a single buffer when the request is sent. Subscribing waits for
+   * room in the window of the limiter.
+   *
+   * @param arguments function arguments as nested maps and lists
+   *
+   * @return the checked response body, fails with the Moodle exception or
+   * after moodle.async.timeout ms
+   */
+  public Mono<JsonNode> post(String wsfunction, Map<String, ?> arguments)
+  {
+    return Mono.defer(() ->
+    {
+      LOGGER.debug("wsfunction={}", wsfunction);
+      limiter.acquire();
+      long start = System.nanoTime();
+
+      return request(wsfunction, arguments)
+        .doOnSuccess(body -> limiter.release(start, false))
+        .doOnError(t -> limiter.release(start,
+        MoodleConcurrencyLimiter.isOverload(t)))
+        .doOnCancel(() -> limiter.release(start, false));
+    });
+  }
+
+  /**
+   * Posts the form and hands the response body to the reader as a stream
+   * while it is still being received, the body is never held in memory as
+   * a whole. Waits for room in the window of the limiter.
+   */
+  public <T> T postStreaming(String wsfunction, Map<String, ?> arguments,
+    BodyReader<T> reader) throws IOException
+  {
+    LOGGER.debug("wsfunction={} (streaming)", wsfunction);
+    limiter.acquire();
+    long start = System.nanoTime();
+    boolean overload = false;
+    AtomicReference<Throwable> failure = new AtomicReference<>();
+    PipedOutputStream output = new PipedOutputStream();
+    Disposable subscription = null;
+
+    try (PipedInputStream input = new PipedInputStream(output, PIPE_SIZE))
+    {
+      // buffers are written to the pipe on a worker, never on the event loop
+      Flux<DataBuffer> body = webClient.post()
+        .uri(uri)
+        .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+        .body(formBody(wsfunction, arguments))
+        .retrieve()
+        .bodyToFlux(DataBuffer.class)
+        .publishOn(Schedulers.boundedElastic());
+
+      // doFinally runs after the error consumer, so a failure is recorded
+      // before the reader sees the end of the stream
+      subscription = DataBufferUtils.write(body, output)
+        .doFinally(signal -> closeQuietly(output))
+        .subscribe(DataBufferUtils.releaseConsumer(), failure::set);
+
+      T result = null;
+
+      try
+      {
+        result = reader.read(input);
+      }
+      catch (IOException | RuntimeException e)
+      {
+        // a reader failing on a broken transfer is reported below
+        if (failure.get() == null)
+        {
+          overload = MoodleConcurrencyLimiter.isOverload(e);
+          throw e;
+        }
+      }
+
+      if (failure.get() != null)
+      {
+        overload = MoodleConcurrencyLimiter.isOverload(failure.get());
+        throw new IllegalStateException(wsfunction + " failed",
+          failure.get());
+      }
+
+      return result;
+    }
+    finally
+    {
+      if (subscription != null)
+      {
+        subscription.dispose();
+      }
+
+      limiter.release(start, overload);
+    }
+  }
+
+  private static void closeQuietly(OutputStream output)
+  {
+    try
+    {
+      output.close();
+    }
+    catch (IOException e)
+    {
+      LOGGER.trace("closing pipe: {}", e.getMessage());
+    }
+  }
+
+  private Mono<JsonNode> request(String wsfunction,
+    Map<String, ?> arguments)
+  {
+    return webClient.post()
+      .uri(uri)
+      .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+      .body(formBody(wsfunction, arguments))
+      .retrieve()
+      .bodyToMono(JsonNode.class)
+      .timeout(Duration.ofMillis(config.getMoodleAsyncTimeout()))
+      .defaultIfEmpty(NullNode.getInstance())
+      .map(MoodleService::checkBody);
+  }
+
+  private BodyInserter<Object, ReactiveHttpOutputMessage> formBody(
+    String wsfunction, Map<String, ?> arguments)
+  {
+    return (outputMessage, context) -> outputMessage.writeWith(
+      Mono.fromCallable(() -> encode(outputMessage.bufferFactory(),
+      wsfunction, arguments)));
+  }
+
+  private DataBuffer encode(DataBufferFactory bufferFactory,
+    String wsfunction, Map<String, ?> arguments) throws IOException
+  {
+    DataBuffer buffer = bufferFactory.allocateBuffer(INITIAL_BODY_SIZE);
+
+    try (OutputStream output = buffer.asOutputStream())
+    {
+      new MoodleFormWriter(output).write(wsfunction, wstoken, arguments);
+    }
+    catch (IOException | RuntimeException e)
+    {
+      DataBufferUtils.release(buffer);
+      throw e;
+    }
+
+    return buffer;
+  }
+
+  /**
+   * Reads a response body from a stream.
+   */
+  @FunctionalInterface
+  public interface BodyReader<T>
+  {
+    T read(InputStream input) throws IOException;
+  }
+
+  private final WebClient webClient;
+
+  private final String wstoken;
+
+  private final URI uri;
+
+  private final Config config;
+
+  private final MoodleConcurrencyLimiter limiter;
+}
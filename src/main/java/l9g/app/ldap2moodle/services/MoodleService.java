@@ -15,25 +15,38 @@
  */
 package l9g.app.ldap2moodle.services;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 import l9g.app.ldap2moodle.Config;
 import l9g.app.ldap2moodle.handler.CryptoHandler;
-import l9g.app.ldap2moodle.model.MoodleAnonymousUser;
 import l9g.app.ldap2moodle.model.MoodleRole;
 import l9g.app.ldap2moodle.model.MoodleUser;
-import l9g.app.ldap2moodle.model.MoodleUsersResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ReactorNettyClientRequestFactory;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponents;
-import org.springframework.web.util.UriComponentsBuilder;
 
 /**
  *
@@ -45,59 +58,269 @@ public class MoodleService
   private final static Logger LOGGER
     = LoggerFactory.getLogger(MoodleService.class);
 
-  final private RestTemplate restTemplate = new RestTemplate();
+  private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
   final private String wstoken;
 
+  final private URI uri;
+
   final private Config config;
 
+  final private RestTemplate restTemplate;
+
+  final private MoodleConcurrencyLimiter limiter;
+
+  final private MoodleReactiveService reactiveService;
+
   @Autowired
-  public MoodleService(Config config, CryptoHandler cryptoHandler)
+  public MoodleService(Config config, CryptoHandler cryptoHandler,
+    MoodleHttpTransport httpTransport, MoodleConcurrencyLimiter limiter,
+    MoodleReactiveService reactiveService)
   {
     this.wstoken = cryptoHandler.decrypt(config.getMoodleToken());
     this.config = config;
+    this.limiter = limiter;
+    this.reactiveService = reactiveService;
+    this.uri = URI.create(config.getMoodleBaseUrl().trim());
+
+    // the defaults (10s read, 5s exchange) would cut off slow batches
+    ReactorNettyClientRequestFactory requestFactory
+      = new ReactorNettyClientRequestFactory(httpTransport.getHttpClient());
+    Duration timeout
+      = Duration.ofMillis(config.getMoodleHttpResponseTimeout());
+    requestFactory.setReadTimeout(timeout);
+    requestFactory.setExchangeTimeout(timeout);
+    this.restTemplate = new RestTemplate(requestFactory);
   }
 
-  private URI uriBuilder(String wsfunction,
-    LinkedHashMap<String, String> parameters)
+  /**
+   * Posts the token, the function name and the arguments as form to the
+   * Moodle REST endpoint. The form is encoded straight into the request
+   * body. The request waits for room in the window of the limiter.
+   */
+  private <T> T post(String wsfunction, Map<String, ?> arguments,
+    ResponseExtractor<T> responseExtractor)
   {
-    UriComponentsBuilder builder = UriComponentsBuilder
-      .fromHttpUrl(config.getMoodleBaseUrl())
-      .queryParam("wstoken", wstoken)
-      .queryParam("moodlewsrestformat", "json")
-      .queryParam("wsfunction", wsfunction);
+    LOGGER.debug("wsfunction={}", wsfunction);
+    limiter.acquire();
+    long start = System.nanoTime();
+    boolean overload = false;
 
-    if (parameters != null && !parameters.isEmpty())
+    try
+    {
+      return execute(wsfunction, arguments, responseExtractor);
+    }
+    catch (RuntimeException e)
     {
-      parameters.forEach((key, value) -> builder.queryParam(key, value));
+      overload = MoodleConcurrencyLimiter.isOverload(e);
+      throw e;
     }
+    finally
+    {
+      limiter.release(start, overload);
+    }
+  }
+
+  private <T> T execute(String wsfunction, Map<String, ?> arguments,
+    ResponseExtractor<T> responseExtractor)
+  {
+    return restTemplate.execute(uri, HttpMethod.POST, request ->
+    {
+      request.getHeaders().setContentType(
+        MediaType.APPLICATION_FORM_URLENCODED);
 
-    UriComponents uriComponents = builder.build().encode();
-    LOGGER.debug("uri={}", uriComponents.toUriString());
+      if (request instanceof StreamingHttpOutputMessage)
+      {
+        ((StreamingHttpOutputMessage) request).setBody(output
+          -> new MoodleFormWriter(output).write(wsfunction, wstoken,
+            arguments));
+      }
+      else
+      {
+        new MoodleFormWriter(request.getBody()).write(wsfunction, wstoken,
+          arguments);
+      }
+    }, response ->
+    {
+      if (response.getStatusCode() != HttpStatus.OK)
+      {
+        throw new IllegalStateException("HTTP status "
+          + response.getStatusCode());
+      }
+
+      return responseExtractor.extractData(response);
+    });
+  }
 
-    return uriComponents.toUri();
+  /**
+   * @return the checked response body
+   */
+  private JsonNode postJson(String wsfunction, Map<String, ?> arguments)
+  {
+    return checkBody(post(wsfunction, arguments,
+      response -> OBJECT_MAPPER.readTree(response.getBody())));
   }
 
-  public List<MoodleUser> users()
+  /**
+   * Streams all users (email LIKE %) into the consumer, the response is
+   * decoded token by token while it is received and never held in memory
+   * as a whole. The buffering request factory of the RestTemplate is not
+   * used for this.
+   *
+   * @return number of users read
+   */
+  public int users(Consumer<MoodleUser> consumer)
   {
-    List<MoodleUser> result = null;
+    try
+    {
+      return reactiveService.postStreaming("core_user_get_users",
+        Map.of("criteria", List.of(Map.of("key", "email", "value", "%"))),
+        input -> MoodleUsersStreamParser.parse(input, consumer));
+    }
+    catch (IOException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads all users in slices of consecutive ids with
+   * core_user_get_users_by_field, moodle.fetch.threads slices at a time.
+   * Reading ends once knownMaxId is passed and moodle.fetch.max-empty-slices
+   * slices in a row returned no user. A failed slice is retried, the read
+   * fails only if all attempts of a slice failed.
+   *
+   * @param consumer called from multiple threads, calls are synchronized
+   * @param knownMaxId highest Moodle id known from earlier runs, 0 if none
+   *
+   * @return number of users read
+   */
+  public int usersPartitioned(Consumer<MoodleUser> consumer, int knownMaxId)
+    throws InterruptedException
+  {
+    int sliceSize = Math.max(1, config.getMoodleFetchSliceSize());
+    int threads = Math.max(1, config.getMoodleFetchThreads());
+    int maxEmptySlices = Math.max(1, config.getMoodleFetchMaxEmptySlices());
+
+    Consumer<MoodleUser> synchronizedConsumer = user ->
+    {
+      synchronized (consumer)
+      {
+        consumer.accept(user);
+      }
+    };
 
-    LinkedHashMap<String, String> criterias = new LinkedHashMap<>();
-    criterias.put("criteria[0][key]", "email");
-    criterias.put("criteria[0][value]", "%");
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    int total = 0;
 
-    ResponseEntity<MoodleUsersResponse> response
-      = restTemplate.getForEntity(
-        uriBuilder("core_user_get_users", criterias),
-        MoodleUsersResponse.class);
+    try
+    {
+      int lastNonEmpty = -1;
+      int slice = 0;
+
+      // ids above knownMaxId are read until enough slices are empty
+      while ((long) slice * sliceSize < knownMaxId
+        || slice <= lastNonEmpty + maxEmptySlices)
+      {
+        List<Future<Integer>> round = new ArrayList<>();
+        int firstSlice = slice;
+
+        for (int i = 0; i < threads; i++, slice++)
+        {
+          int firstId = 1 + slice * sliceSize;
+          round.add(executor.submit(() -> fetchSlice(firstId, sliceSize,
+            synchronizedConsumer)));
+        }
+
+        for (int i = 0; i < round.size(); i++)
+        {
+          int count = round.get(i).get();
+          total += count;
+
+          if (count > 0)
+          {
+            lastNonEmpty = firstSlice + i;
+          }
+        }
+      }
+
+      LOGGER.debug("{} slices of {} ids read", slice, sliceSize);
+
+      if (knownMaxId <= 0)
+      {
+        LOGGER.warn("highest Moodle id unknown, read ended after {} empty "
+          + "slices at id {}, users with higher ids are missed", maxEmptySlices,
+          slice * sliceSize);
+      }
+    }
+    catch (ExecutionException e)
+    {
+      throw new IllegalStateException("reading Moodle users failed",
+        e.getCause());
+    }
+    finally
+    {
+      executor.shutdownNow();
+    }
+
+    return total;
+  }
+
+  private int fetchSlice(int firstId, int sliceSize,
+    Consumer<MoodleUser> consumer) throws InterruptedException
+  {
+    List<String> ids = new ArrayList<>(sliceSize);
 
-    if (response != null && response.getBody() != null
-      && response.getStatusCode() == HttpStatus.OK)
+    for (int i = 0; i < sliceSize; i++)
     {
-      result = response.getBody().getUsers();
+      ids.add(Integer.toString(firstId + i));
     }
 
-    return result;
+    return usersByField("id", ids, consumer);
+  }
+
+  /**
+   * Reads the users with the given values of field (id, username, email,
+   * idnumber) with one core_user_get_users_by_field request. The request
+   * is retried up to moodle.fetch.retries times.
+   *
+   * @return number of users found
+   */
+  public int usersByField(String field, List<String> values,
+    Consumer<MoodleUser> consumer) throws InterruptedException
+  {
+    Map<String, Object> arguments = new LinkedHashMap<>();
+    arguments.put("field", field);
+    arguments.put("values", values);
+
+    int retries = Math.max(1, config.getMoodleFetchRetries());
+
+    for (int attempt = 1;; attempt++)
+    {
+      // users of a failed attempt are collected again by the next one
+      List<MoodleUser> users = new ArrayList<>();
+
+      try
+      {
+        post("core_user_get_users_by_field", arguments,
+          response -> MoodleUsersStreamParser.parse(response.getBody(),
+            users::add));
+
+        users.forEach(consumer);
+        return users.size();
+      }
+      catch (RuntimeException e)
+      {
+        if (attempt >= retries)
+        {
+          throw e;
+        }
+
+        LOGGER.warn("{} lookup of {} values failed (attempt {}/{}): {}",
+          field, values.size(), attempt, retries, e.getMessage());
+        Thread.sleep(1000l * attempt);
+      }
+    }
   }
 
   // TODO: ...
@@ -106,21 +329,179 @@ public class MoodleService
     return new ArrayList<>();
   }
 
-  // TODO: ...
-  public MoodleUser usersCreate(MoodleUser user)
+  /**
+   * Creates all users with one core_user_create_users request. Moodle
+   * creates either all or none of them.
+   *
+   * @return the created users, only id and username are set
+   */
+  public List<MoodleUser> usersCreate(List<Map<String, Object>> users)
   {
-    return user;
+    if (users.isEmpty())
+    {
+      return new ArrayList<>();
+    }
+
+    return parseCreatedUsers(
+      postJson("core_user_create_users", Map.of("users", users)));
   }
 
-  // TODO: ...
-  public MoodleUser usersUpdate(int id, MoodleUser user)
+  /**
+   * @return id and username of the users created by core_user_create_users
+   */
+  public static List<MoodleUser> parseCreatedUsers(JsonNode result)
   {
-    return user;
+    List<MoodleUser> created = new ArrayList<>();
+
+    if (result != null)
+    {
+      for (JsonNode node : result)
+      {
+        MoodleUser user = new MoodleUser();
+        user.setId(node.path("id").asInt());
+        user.setUsername(node.path("username").asText());
+        created.add(user);
+      }
+    }
+
+    return created;
   }
 
-  // TODO: ...
-  public MoodleUser usersAnonymize(int id, MoodleAnonymousUser user)
+  /**
+   * Updates the users with one core_user_update_users request, each map
+   * holds the id and the changed fields of one user, all other fields are
+   * left untouched.
+   *
+   * @return messages of the users Moodle did not update, by user id
+   */
+  public Map<Integer, String> usersUpdate(List<Map<String, Object>> users)
+  {
+    if (users.isEmpty())
+    {
+      return new HashMap<>();
+    }
+
+    return parseWarnings(
+      postJson("core_user_update_users", Map.of("users", users)));
+  }
+
+  /**
+   * @return messages of a warnings array by item id
+   */
+  public static Map<Integer, String> parseWarnings(JsonNode result)
+  {
+    // core_user_update_users of Moodle < 4.0 returns null
+    Map<Integer, String> warnings = new HashMap<>();
+
+    if (result != null)
+    {
+      for (JsonNode warning : result.path("warnings"))
+      {
+        warnings.put(warning.path("itemid").asInt(),
+          warning.path("warningcode").asText() + ": "
+          + warning.path("message").asText());
+      }
+    }
+
+    return warnings;
+  }
+
+  /**
+   * Runs all calls inside one tool_mobile_call_external_functions request.
+   * Moodle executes them one after another, each call gets its own result
+   * or error until the first error, later calls are not executed.
+   */
+  public void callFunctions(List<MoodleCall> calls)
+    throws JsonProcessingException
+  {
+    parseResponses(calls, postJson("tool_mobile_call_external_functions",
+      callFunctionsArguments(calls)));
+  }
+
+  /**
+   * @return arguments of tool_mobile_call_external_functions, the
+   * arguments of each call are passed as JSON string
+   */
+  public static Map<String, Object> callFunctionsArguments(
+    List<MoodleCall> calls) throws JsonProcessingException
   {
-    return null;
+    List<Map<String, Object>> requests = new ArrayList<>(calls.size());
+
+    for (MoodleCall call : calls)
+    {
+      Map<String, Object> request = new LinkedHashMap<>();
+      request.put("function", call.getFunction());
+      request.put("arguments",
+        OBJECT_MAPPER.writeValueAsString(call.getArguments()));
+      request.put("settingfilter", false);
+      request.put("settingraw", true);
+      requests.add(request);
+    }
+
+    return Map.of("requests", requests);
+  }
+
+  /**
+   * Sets result or error of each call from a
+   * tool_mobile_call_external_functions response. Moodle stops at the
+   * first failing call, the calls after it stay unanswered.
+   */
+  public static void parseResponses(List<MoodleCall> calls, JsonNode body)
+    throws JsonProcessingException
+  {
+    JsonNode responses = body.path("responses");
+
+    if (responses.size() > calls.size())
+    {
+      throw new IllegalStateException("expected " + calls.size()
+        + " responses, got " + responses.size());
+    }
+
+    for (int i = 0; i < responses.size(); i++)
+    {
+      JsonNode callResponse = responses.get(i);
+      MoodleCall call = calls.get(i);
+
+      // data and exception are JSON encoded strings
+      if (callResponse.path("error").asBoolean())
+      {
+        JsonNode exception = OBJECT_MAPPER.readTree(
+          callResponse.path("exception").asText("{}"));
+        call.failed(exception.path("errorcode").asText() + ": "
+          + exception.path("message").asText());
+      }
+      else
+      {
+        String data = callResponse.path("data").asText(null);
+        call.succeeded(data == null ? null : OBJECT_MAPPER.readTree(data));
+      }
+    }
+  }
+
+  /**
+   * Moodle reports errors with HTTP status 200 and an exception object.
+   */
+  public static JsonNode checkBody(JsonNode body)
+  {
+    if (body != null && body.has("exception"))
+    {
+      throw new IllegalStateException(body.path("errorcode").asText()
+        + ": " + body.path("message").asText());
+    }
+
+    return body;
+  }
+
+  /**
+   * Deletes the users with one core_user_delete_users request.
+   */
+  public void usersDelete(List<Integer> ids)
+  {
+    if (ids.isEmpty())
+    {
+      return;
+    }
+
+    postJson("core_user_delete_users", Map.of("userids", ids));
   }
 }
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.services;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.Consumer;
+import l9g.app.ldap2moodle.model.MoodleUser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Token level decoder of a core_user_get_users (or
+ * core_user_get_users_by_field) response. Users are passed
+ * to the consumer one at a time, only the fields needed by the sync are
+ * kept, all others (fullname, image urls, custom fields, ...) are skipped
+ * without being materialized. Every field MoodleUserDiff compares is kept,
+ * including description and descriptionformat, otherwise a mapped value
+ * would look changed on every run.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+class MoodleUsersStreamParser
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(MoodleUsersStreamParser.class);
+
+  private static final JsonFactory JSON_FACTORY = new MappingJsonFactory();
+
+  private MoodleUsersStreamParser()
+  {
+  }
+
+  /**
+   * @return number of users passed to the consumer
+   */
+  static int parse(InputStream input, Consumer<MoodleUser> consumer)
+    throws IOException
+  {
+    int count = 0;
+
+    try (JsonParser parser = JSON_FACTORY.createParser(input))
+    {
+      JsonToken first = parser.nextToken();
+
+      if (first == JsonToken.START_ARRAY)
+      {
+        // core_user_get_users_by_field returns a plain array
+        while (parser.nextToken() == JsonToken.START_OBJECT)
+        {
+          consumer.accept(parseUser(parser));
+          count++;
+        }
+
+        return count;
+      }
+
+      expect(parser, first, JsonToken.START_OBJECT);
+
+      while (parser.nextToken() == JsonToken.FIELD_NAME)
+      {
+        String name = parser.getCurrentName();
+        JsonToken token = parser.nextToken();
+
+        if ("users".equals(name) && token == JsonToken.START_ARRAY)
+        {
+          while (parser.nextToken() == JsonToken.START_OBJECT)
+          {
+            consumer.accept(parseUser(parser));
+            count++;
+          }
+        }
+        else if ("warnings".equals(name) && token == JsonToken.START_ARRAY)
+        {
+          while (parser.nextToken() == JsonToken.START_OBJECT)
+          {
+            LOGGER.warn("moodle warning: {}",
+              parser.readValueAsTree().toString());
+          }
+        }
+        else if ("exception".equals(name))
+        {
+          throw new IllegalStateException("moodle exception: "
+            + parser.getValueAsString());
+        }
+        else
+        {
+          parser.skipChildren();
+        }
+      }
+    }
+
+    return count;
+  }
+
+  private static MoodleUser parseUser(JsonParser parser) throws IOException
+  {
+    MoodleUser user = new MoodleUser();
+
+    while (parser.nextToken() == JsonToken.FIELD_NAME)
+    {
+      String name = parser.getCurrentName();
+      parser.nextToken();
+
+      switch (name)
+      {
+        case "id":
+          user.setId(parser.getValueAsInt());
+          break;
+
+        case "username":
+          user.setUsername(parser.getValueAsString());
+          break;
+
+        case "firstname":
+          user.setFirstname(parser.getValueAsString());
+          break;
+
+        case "lastname":
+          user.setLastname(parser.getValueAsString());
+          break;
+
+        case "email":
+          user.setEmail(parser.getValueAsString());
+          break;
+
+        case "department":
+          user.setDepartment(parser.getValueAsString());
+          break;
+
+        case "auth":
+          user.setAuth(parser.getValueAsString());
+          break;
+
+        case "suspended":
+          user.setSuspended(parser.getValueAsBoolean());
+          break;
+
+        case "confirmed":
+          user.setConfirmed(parser.getValueAsBoolean());
+          break;
+
+        case "lang":
+          user.setLang(parser.getValueAsString());
+          break;
+
+        case "theme":
+          user.setTheme(parser.getValueAsString());
+          break;
+
+        case "timezone":
+          user.setTimezone(parser.getValueAsString());
+          break;
+
+        case "mailformat":
+          user.setMailformat(parser.getValueAsInt());
+          break;
+
+        case "country":
+          user.setCountry(parser.getValueAsString());
+          break;
+
+        case "description":
+          user.setDescription(parser.getValueAsString());
+          break;
+
+        case "descriptionformat":
+          user.setDescriptionformat(parser.getValueAsInt());
+          break;
+
+        default:
+          parser.skipChildren();
+      }
+    }
+
+    return user;
+  }
+
+  private static void expect(JsonParser parser, JsonToken token,
+    JsonToken expected) throws IOException
+  {
+    if (token != expected)
+    {
+      throw new IOException("unexpected " + token + " at "
+        + parser.getCurrentLocation() + ", expected " + expected);
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.state;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MapperFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.json.JsonMapper;
+import com.unboundid.ldap.sdk.Entry;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.TreeSet;
+import l9g.app.ldap2moodle.TimestampUtil;
+
+/**
+ * Stable digests of sync payloads.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public final class DigestUtil
+{
+  private static final ObjectMapper OBJECT_MAPPER = JsonMapper.builder()
+    .enable(MapperFeature.SORT_PROPERTIES_ALPHABETICALLY)
+    .build();
+
+  private DigestUtil()
+  {
+  }
+
+  /**
+   * @return hex encoded SHA-256 of the JSON representation, properties
+   * sorted by name
+   */
+  public static String payloadDigest(Object payload)
+  {
+    try
+    {
+      return sha256(OBJECT_MAPPER.writeValueAsBytes(payload));
+    }
+    catch (JsonProcessingException e)
+    {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return hex encoded SHA-256 over the given attributes of the entry
+   * (sorted by name, values sorted) and the salt, modifyTimestamp is
+   * ignored
+   */
+  public static String ldapDigest(Entry entry, String[] attributeNames,
+    String salt)
+  {
+    TreeSet<String> names = new TreeSet<>();
+
+    for (String attributeName : attributeNames)
+    {
+      String name = attributeName.trim().toLowerCase();
+      if (name.length() > 0 && !TimestampUtil.MODIFY_TIMESTAMP
+        .equalsIgnoreCase(name))
+      {
+        names.add(name);
+      }
+    }
+
+    MessageDigest messageDigest = newMessageDigest();
+    update(messageDigest, salt == null ? "" : salt);
+
+    for (String name : names)
+    {
+      String[] values = entry.getAttributeValues(name);
+
+      if (values != null)
+      {
+        values = values.clone();
+        Arrays.sort(values);
+        update(messageDigest, name);
+
+        for (String value : values)
+        {
+          update(messageDigest, value);
+        }
+      }
+    }
+
+    return HexFormat.of().formatHex(messageDigest.digest());
+  }
+
+  private static void update(MessageDigest messageDigest, String value)
+  {
+    messageDigest.update(value.getBytes(StandardCharsets.UTF_8));
+    messageDigest.update((byte) 0);
+  }
+
+  public static String sha256(byte[] data)
+  {
+    return HexFormat.of().formatHex(newMessageDigest().digest(data));
+  }
+
+  static MessageDigest newMessageDigest()
+  {
+    try
+    {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+}
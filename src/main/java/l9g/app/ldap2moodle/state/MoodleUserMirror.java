@@ -0,0 +1,430 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.state;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import l9g.app.ldap2moodle.VarDirectoryUtil;
+import l9g.app.ldap2moodle.model.MoodleUser;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local copy of the Moodle user table as far as the sync needs it: id,
+ * username, email, auth, suspended and a digest of these fields. Stored as
+ * fixed width records in a memory mapped file and updated in place, a
+ * free record is reused by the next new user.
+ *
+ * Record layout (864 bytes): id (int), flags (int), username, email and
+ * auth as length prefixed UTF-8 (400, 400 and 24 bytes, Moodle allows 100
+ * characters for username and email), digest (16 bytes). A mirror of an
+ * older layout is rebuilt by the next verification.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class MoodleUserMirror implements Closeable
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(MoodleUserMirror.class);
+
+  private static final String MIRROR_FILENAME = "mirror.db";
+
+  private static final int MAGIC = 0x4c324d4d; // L2MM
+
+  private static final int VERSION = 2;
+
+  private static final int HEADER_SIZE = 64;
+
+  private static final int HEADER_RECORDS = 8;
+
+  private static final int HEADER_LAST_VERIFY = 16;
+
+  private static final int RECORD_SIZE = 864;
+
+  private static final int USERNAME_SIZE = 400;
+
+  private static final int EMAIL_SIZE = 400;
+
+  private static final int AUTH_SIZE = 24;
+
+  private static final int DIGEST_SIZE = 16;
+
+  private static final int OFFSET_FLAGS = 4;
+
+  private static final int OFFSET_USERNAME = 8;
+
+  private static final int OFFSET_EMAIL = OFFSET_USERNAME + 2 + USERNAME_SIZE;
+
+  private static final int OFFSET_AUTH = OFFSET_EMAIL + 2 + EMAIL_SIZE;
+
+  private static final int OFFSET_DIGEST = OFFSET_AUTH + 2 + AUTH_SIZE;
+
+  private static final int FLAG_USED = 1;
+
+  private static final int FLAG_SUSPENDED = 2;
+
+  private static final int INITIAL_RECORDS = 4096;
+
+  public MoodleUserMirror(String prefix) throws IOException
+  {
+    mirrorFile = new File(VarDirectoryUtil.getVarDirectory(),
+      prefix + "-" + MIRROR_FILENAME);
+    LOGGER.debug("mirrorFile={}", mirrorFile.getAbsolutePath());
+
+    if (mirrorFile.exists() && isOutdated(mirrorFile))
+    {
+      LOGGER.info("mirror layout changed, rebuilding {}",
+        mirrorFile.getAbsolutePath());
+      Files.delete(mirrorFile.toPath());
+    }
+
+    if (!mirrorFile.exists())
+    {
+      try (RandomAccessFile raf = new RandomAccessFile(mirrorFile, "rw"))
+      {
+        raf.setLength(HEADER_SIZE + (long) INITIAL_RECORDS * RECORD_SIZE);
+        raf.writeInt(MAGIC);
+        raf.writeInt(VERSION);
+        raf.writeInt(0);
+      }
+    }
+
+    map();
+
+    if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+    {
+      throw new IOException("Not a Moodle user mirror: "
+        + mirrorFile.getAbsolutePath());
+    }
+
+    records = buffer.getInt(HEADER_RECORDS);
+
+    for (int i = 0; i < records; i++)
+    {
+      if ((buffer.getInt(offset(i) + OFFSET_FLAGS) & FLAG_USED) != 0)
+      {
+        slots.put(readString(offset(i) + OFFSET_USERNAME), i);
+      }
+      else
+      {
+        freeSlots.add(i);
+      }
+    }
+
+    LOGGER.info("{} Moodle users in mirror {}", slots.size(),
+      mirrorFile.getAbsolutePath());
+  }
+
+  /**
+   * @return true for a mirror file written with an older VERSION
+   */
+  private static boolean isOutdated(File file) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r"))
+    {
+      return raf.length() >= 8 && raf.readInt() == MAGIC
+        && raf.readInt() != VERSION;
+    }
+  }
+
+  private void map() throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(mirrorFile, "rw"))
+    {
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+        raf.length());
+    }
+
+    capacity = (int) ((buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+  }
+
+  public synchronized int size()
+  {
+    return slots.size();
+  }
+
+  /**
+   * @return the Moodle id, -1 if the user is not in the mirror
+   */
+  public synchronized int getMoodleId(String username)
+  {
+    Integer slot = slots.get(username);
+    return (slot != null) ? buffer.getInt(offset(slot)) : -1;
+  }
+
+  /**
+   * @return a MoodleUser with the mirrored fields only, null if unknown
+   */
+  public synchronized MoodleUser get(String username)
+  {
+    Integer slot = slots.get(username);
+    return (slot != null) ? read(slot) : null;
+  }
+
+  /**
+   * @return all mirrored users, only the mirrored fields are set
+   */
+  public synchronized List<MoodleUser> getUsers()
+  {
+    List<MoodleUser> users = new ArrayList<>(slots.size());
+    slots.values().forEach(slot -> users.add(read(slot)));
+    return users;
+  }
+
+  /**
+   * Inserts or updates the record of the user in place.
+   *
+   * @return true if the user was new or one of the mirrored fields differed,
+   * false as well for a user whose fields do not fit and who is left out
+   */
+  public synchronized boolean put(MoodleUser user) throws IOException
+  {
+    if (!fits(user.getUsername(), USERNAME_SIZE)
+      || !fits(user.getEmail(), EMAIL_SIZE)
+      || !fits(user.getAuth(), AUTH_SIZE))
+    {
+      LOGGER.warn("user {} ({}) does not fit into the mirror, left out",
+        user.getUsername(), user.getId());
+      remove(user.getUsername());
+      return false;
+    }
+
+    String digest = digest(user);
+    Integer slot = slots.get(user.getUsername());
+    boolean changed = true;
+
+    if (slot == null)
+    {
+      slot = allocate();
+      slots.put(user.getUsername(), slot);
+    }
+    else
+    {
+      changed = !digest.equals(readDigest(slot));
+    }
+
+    if (changed)
+    {
+      int offset = offset(slot);
+      buffer.putInt(offset, user.getId() == null ? -1 : user.getId());
+      buffer.putInt(offset + OFFSET_FLAGS, FLAG_USED
+        | (Boolean.TRUE.equals(user.getSuspended()) ? FLAG_SUSPENDED : 0));
+      writeString(offset + OFFSET_USERNAME, USERNAME_SIZE,
+        user.getUsername());
+      writeString(offset + OFFSET_EMAIL, EMAIL_SIZE, user.getEmail());
+      writeString(offset + OFFSET_AUTH, AUTH_SIZE, user.getAuth());
+      buffer.put(offset + OFFSET_DIGEST,
+        HexFormat.of().parseHex(digest), 0, DIGEST_SIZE);
+    }
+
+    if (verifySeen != null)
+    {
+      verifySeen.set(slot);
+    }
+
+    return changed;
+  }
+
+  public synchronized void remove(String username)
+  {
+    Integer slot = slots.remove(username);
+
+    if (slot != null)
+    {
+      buffer.putInt(offset(slot) + OFFSET_FLAGS, 0);
+      freeSlots.add(slot);
+    }
+  }
+
+  /**
+   * Starts a verification pass, every user read from Moodle has to be
+   * passed to put().
+   */
+  public synchronized void beginVerify()
+  {
+    verifySeen = new BitSet(records);
+  }
+
+  /**
+   * Ends the verification pass: users not seen are removed and the time
+   * of the verification is recorded.
+   *
+   * @return number of removed users
+   */
+  public synchronized int endVerify()
+  {
+    List<String> unseen = new ArrayList<>();
+
+    for (Map.Entry<String, Integer> entry : slots.entrySet())
+    {
+      if (!verifySeen.get(entry.getValue()))
+      {
+        unseen.add(entry.getKey());
+      }
+    }
+
+    unseen.forEach(this::remove);
+    verifySeen = null;
+    buffer.putLong(HEADER_LAST_VERIFY, System.currentTimeMillis());
+    force();
+    return unseen.size();
+  }
+
+  /**
+   * @return true if the last verification is older than maxAge ms
+   */
+  public synchronized boolean isVerifyDue(long maxAge)
+  {
+    long lastVerify = buffer.getLong(HEADER_LAST_VERIFY);
+    return lastVerify == 0 || System.currentTimeMillis() - lastVerify > maxAge;
+  }
+
+  public synchronized void force()
+  {
+    buffer.force();
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    force();
+  }
+
+  private int allocate() throws IOException
+  {
+    if (!freeSlots.isEmpty())
+    {
+      return freeSlots.poll();
+    }
+
+    if (records >= capacity)
+    {
+      // records never move, the file is just extended and mapped again
+      force();
+
+      try (RandomAccessFile raf = new RandomAccessFile(mirrorFile, "rw"))
+      {
+        raf.setLength(HEADER_SIZE + (long) capacity * 2 * RECORD_SIZE);
+      }
+
+      map();
+      LOGGER.debug("mirror grown to {} records", capacity);
+    }
+
+    int slot = records++;
+    buffer.putInt(HEADER_RECORDS, records);
+    return slot;
+  }
+
+  private MoodleUser read(int slot)
+  {
+    int offset = offset(slot);
+    MoodleUser user = new MoodleUser();
+    user.setId(buffer.getInt(offset));
+    user.setSuspended(
+      (buffer.getInt(offset + OFFSET_FLAGS) & FLAG_SUSPENDED) != 0);
+    user.setUsername(readString(offset + OFFSET_USERNAME));
+    user.setEmail(readString(offset + OFFSET_EMAIL));
+    user.setAuth(readString(offset + OFFSET_AUTH));
+    return user;
+  }
+
+  private String readDigest(int slot)
+  {
+    byte[] digest = new byte[DIGEST_SIZE];
+    buffer.get(offset(slot) + OFFSET_DIGEST, digest);
+    return HexFormat.of().formatHex(digest);
+  }
+
+  private String readString(int offset)
+  {
+    int length = buffer.getShort(offset);
+
+    if (length < 0)
+    {
+      return null;
+    }
+
+    byte[] data = new byte[length];
+    buffer.get(offset + 2, data);
+    return new String(data, StandardCharsets.UTF_8);
+  }
+
+  private void writeString(int offset, int size, String value)
+  {
+    if (value == null)
+    {
+      buffer.putShort(offset, (short) -1);
+      return;
+    }
+
+    byte[] data = value.getBytes(StandardCharsets.UTF_8);
+    buffer.putShort(offset, (short) data.length);
+    buffer.put(offset + 2, data);
+  }
+
+  private static boolean fits(String value, int size)
+  {
+    return value == null
+      || value.getBytes(StandardCharsets.UTF_8).length <= size;
+  }
+
+  private static int offset(int slot)
+  {
+    return HEADER_SIZE + slot * RECORD_SIZE;
+  }
+
+  /**
+   * digest of the mirrored fields, truncated to 16 bytes
+   */
+  private static String digest(MoodleUser user)
+  {
+    String digest = DigestUtil.sha256((user.getId() + "\0"
+      + user.getUsername() + "\0" + user.getEmail() + "\0" + user.getAuth()
+      + "\0" + Boolean.TRUE.equals(user.getSuspended()))
+      .getBytes(StandardCharsets.UTF_8));
+    return digest.substring(0, DIGEST_SIZE * 2);
+  }
+
+  private final File mirrorFile;
+
+  private final Map<String, Integer> slots = new HashMap<>();
+
+  private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+  private MappedByteBuffer buffer;
+
+  @Getter
+  private int capacity;
+
+  private int records;
+
+  private BitSet verifySeen;
+}
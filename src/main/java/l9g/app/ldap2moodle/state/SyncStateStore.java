@@ -0,0 +1,404 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.state;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import l9g.app.ldap2moodle.VarDirectoryUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Embedded, file backed store for the sync state: one UserState per uid
+ * and the metadata of the runs (watermarks, counters).
+ *
+ * The file is an append-only log of CRC protected records. On load a
+ * truncated or corrupt tail, left by a crash, is cut off. commit() forces
+ * the log to disk, close() compacts it into a fresh snapshot (temp file,
+ * fsync, atomic rename) once it contains too many superseded records.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class SyncStateStore implements Closeable
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(SyncStateStore.class);
+
+  private static final String STATE_FILENAME = "state.db";
+
+  private static final int MAGIC = 0x4c324d53; // L2MS
+
+  private static final byte RECORD_USER = 1;
+
+  private static final byte RECORD_USER_REMOVED = 2;
+
+  private static final byte RECORD_META = 3;
+
+  private static final byte RECORD_USER_V2 = 4;
+
+  private static final int COMMIT_INTERVAL = 1000;
+
+  public SyncStateStore(String prefix) throws IOException
+  {
+    stateFile = new File(VarDirectoryUtil.getVarDirectory(),
+      prefix + "-" + STATE_FILENAME);
+    LOGGER.debug("stateFile={}", stateFile.getAbsolutePath());
+
+    load();
+    openLog();
+  }
+
+  private void load() throws IOException
+  {
+    if (!stateFile.exists())
+    {
+      LOGGER.info("new state store {}", stateFile.getAbsolutePath());
+      writeSnapshot();
+      return;
+    }
+
+    long validLength = 0;
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+      new FileInputStream(stateFile))))
+    {
+      if (in.readInt() != MAGIC)
+      {
+        throw new IOException("Not a state store: "
+          + stateFile.getAbsolutePath());
+      }
+
+      validLength = 4;
+
+      while (true)
+      {
+        int length;
+        long crc;
+        byte[] payload;
+
+        try
+        {
+          length = in.readInt();
+          crc = in.readInt() & 0xffffffffl;
+
+          if (length <= 0 || length > 1024 * 1024)
+          {
+            LOGGER.warn("invalid record length at offset {}", validLength);
+            break;
+          }
+
+          payload = new byte[length];
+          in.readFully(payload);
+        }
+        catch (EOFException e)
+        {
+          break;
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload);
+
+        if (crc32.getValue() != crc)
+        {
+          LOGGER.warn("crc mismatch at offset {}", validLength);
+          break;
+        }
+
+        apply(payload);
+        validLength += 8 + length;
+        logRecords++;
+      }
+    }
+
+    if (validLength < stateFile.length())
+    {
+      LOGGER.warn("truncating state store {} from {} to {} bytes",
+        stateFile.getAbsolutePath(), stateFile.length(), validLength);
+
+      try (RandomAccessFile file = new RandomAccessFile(stateFile, "rw"))
+      {
+        file.setLength(validLength);
+        file.getFD().sync();
+      }
+    }
+
+    LOGGER.info("{} user states loaded from {}", users.size(),
+      stateFile.getAbsolutePath());
+  }
+
+  private void apply(byte[] payload) throws IOException
+  {
+    DataInputStream in = new DataInputStream(
+      new ByteArrayInputStream(payload));
+
+    switch (in.readByte())
+    {
+      case RECORD_USER:
+        UserState state = new UserState(in.readUTF(), in.readInt(),
+          emptyToNull(in.readUTF()), null, in.readLong(), in.readLong());
+        users.put(state.getUid(), state);
+        break;
+
+      case RECORD_USER_V2:
+        state = new UserState(in.readUTF(), in.readInt(),
+          emptyToNull(in.readUTF()), emptyToNull(in.readUTF()),
+          in.readLong(), in.readLong());
+        users.put(state.getUid(), state);
+        break;
+
+      case RECORD_USER_REMOVED:
+        users.remove(in.readUTF());
+        break;
+
+      case RECORD_META:
+        meta.put(in.readUTF(), in.readUTF());
+        break;
+
+      default:
+        throw new IOException("unknown record type");
+    }
+  }
+
+  private void openLog() throws IOException
+  {
+    logStream = new FileOutputStream(stateFile, true);
+    logOutput = new DataOutputStream(new BufferedOutputStream(logStream));
+  }
+
+  public synchronized UserState get(String uid)
+  {
+    return users.get(uid);
+  }
+
+  public synchronized void put(UserState state) throws IOException
+  {
+    users.put(state.getUid(), state);
+    append(userRecord(state));
+  }
+
+  public synchronized void remove(String uid) throws IOException
+  {
+    if (users.remove(uid) != null)
+    {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(RECORD_USER_REMOVED);
+      out.writeUTF(uid);
+      append(bytes.toByteArray());
+    }
+  }
+
+  public synchronized String getMeta(String key)
+  {
+    return meta.get(key);
+  }
+
+  public synchronized void putMeta(String key, String value)
+    throws IOException
+  {
+    meta.put(key, value);
+    append(metaRecord(key, value));
+  }
+
+  /**
+   * @return the matching states, only these are copied
+   */
+  public synchronized List<UserState> getUserStates(
+    Predicate<UserState> filter)
+  {
+    List<UserState> states = new ArrayList<>();
+
+    for (UserState state : users.values())
+    {
+      if (filter.test(state))
+      {
+        states.add(state);
+      }
+    }
+
+    return states;
+  }
+
+  /**
+   * @return highest Moodle id of the recorded users, 0 if none
+   */
+  public synchronized int getMaxMoodleId()
+  {
+    int maxMoodleId = 0;
+
+    for (UserState state : users.values())
+    {
+      maxMoodleId = Math.max(maxMoodleId, state.getMoodleId());
+    }
+
+    return maxMoodleId;
+  }
+
+  public synchronized int size()
+  {
+    return users.size();
+  }
+
+  /**
+   * Forces all appended records to disk.
+   */
+  public synchronized void commit() throws IOException
+  {
+    logOutput.flush();
+    logStream.getFD().sync();
+    uncommitted = 0;
+  }
+
+  @Override
+  public synchronized void close() throws IOException
+  {
+    commit();
+    logOutput.close();
+
+    if (logRecords > 2 * (users.size() + meta.size()) + COMMIT_INTERVAL)
+    {
+      writeSnapshot();
+    }
+  }
+
+  private void append(byte[] payload) throws IOException
+  {
+    writeRecord(logOutput, payload);
+    logRecords++;
+    uncommitted++;
+
+    if (uncommitted >= COMMIT_INTERVAL)
+    {
+      commit();
+    }
+  }
+
+  /**
+   * Compaction: writes all live records into a new file and replaces the
+   * log with it atomically.
+   */
+  private void writeSnapshot() throws IOException
+  {
+    LOGGER.info("compacting state store, {} records -> {} records",
+      logRecords, users.size() + meta.size());
+
+    File tmpFile = new File(stateFile.getParentFile(),
+      stateFile.getName() + ".tmp");
+
+    try (FileOutputStream fileOutput = new FileOutputStream(tmpFile))
+    {
+      DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(fileOutput));
+      out.writeInt(MAGIC);
+
+      for (Map.Entry<String, String> entry : meta.entrySet())
+      {
+        writeRecord(out, metaRecord(entry.getKey(), entry.getValue()));
+      }
+
+      for (UserState state : users.values())
+      {
+        writeRecord(out, userRecord(state));
+      }
+
+      out.flush();
+      fileOutput.getFD().sync();
+    }
+
+    Files.move(tmpFile.toPath(), stateFile.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+    logRecords = users.size() + meta.size();
+  }
+
+  private static void writeRecord(OutputStream output, byte[] payload)
+    throws IOException
+  {
+    CRC32 crc32 = new CRC32();
+    crc32.update(payload);
+
+    DataOutputStream out = (output instanceof DataOutputStream)
+      ? (DataOutputStream) output : new DataOutputStream(output);
+    out.writeInt(payload.length);
+    out.writeInt((int) crc32.getValue());
+    out.write(payload);
+  }
+
+  private static byte[] userRecord(UserState state) throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_USER_V2);
+    out.writeUTF(state.getUid());
+    out.writeInt(state.getMoodleId());
+    out.writeUTF(state.getPayloadDigest() == null
+      ? "" : state.getPayloadDigest());
+    out.writeUTF(state.getLdapDigest() == null ? "" : state.getLdapDigest());
+    out.writeLong(state.getLastModifyTimestamp());
+    out.writeLong(state.getLastSyncTime());
+    return bytes.toByteArray();
+  }
+
+  private static byte[] metaRecord(String key, String value)
+    throws IOException
+  {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeByte(RECORD_META);
+    out.writeUTF(key);
+    out.writeUTF(value);
+    return bytes.toByteArray();
+  }
+
+  private static String emptyToNull(String value)
+  {
+    return (value == null || value.isEmpty()) ? null : value;
+  }
+
+  private final File stateFile;
+
+  private final Map<String, UserState> users = new HashMap<>();
+
+  private final Map<String, String> meta = new HashMap<>();
+
+  private FileOutputStream logStream;
+
+  private DataOutputStream logOutput;
+
+  private long logRecords;
+
+  private int uncommitted;
+}
@@ -0,0 +1,465 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.state;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import l9g.app.ldap2moodle.VarDirectoryUtil;
+import lombok.Getter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Off-heap uid index in a memory mapped file. Open addressing with linear
+ * probing, the key is a 64 bit hash of the canonical (trimmed, lowercase)
+ * username, the usernames themselves are not stored.
+ *
+ * Slot layout (32 bytes): hash (long, 0 = empty), Moodle id (int),
+ * flags (int), first 16 bytes of the LDAP digest.
+ *
+ * The index is never rebuilt on startup, the file is mapped as it is. It
+ * grows by doubling into a new file, which replaces the old one
+ * atomically. With 64 bit hashes the chance of a collision among one
+ * million users is about 3 * 10^-8.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+public class UidIndex implements Closeable
+{
+  private final static Logger LOGGER
+    = LoggerFactory.getLogger(UidIndex.class);
+
+  private static final String INDEX_FILENAME = "uid.index";
+
+  private static final int MAGIC = 0x4c325549; // L2UI
+
+  private static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 64;
+
+  private static final int SLOT_SIZE = 32;
+
+  private static final int DIGEST_SIZE = 16;
+
+  private static final int OFFSET_MOODLE_ID = 8;
+
+  private static final int OFFSET_FLAGS = 12;
+
+  private static final int OFFSET_DIGEST = 16;
+
+  private static final int HEADER_CAPACITY = 8;
+
+  private static final int HEADER_SIZE_FIELD = 12;
+
+  private static final int HEADER_LDAP_REFRESH = 16;
+
+  /**
+   * maximum capacity, a single mapping is limited to 2GB
+   */
+  private static final int MAX_CAPACITY = 1 << 25;
+
+  private static final double MAX_LOAD_FACTOR = 0.7;
+
+  /**
+   * the user exists in Moodle
+   */
+  public static final int FLAG_MOODLE = 1;
+
+  /**
+   * the user exists in LDAP
+   */
+  public static final int FLAG_LDAP = 2;
+
+  public UidIndex(String prefix, int initialCapacity) throws IOException
+  {
+    indexFile = new File(VarDirectoryUtil.getVarDirectory(),
+      prefix + "-" + INDEX_FILENAME);
+    LOGGER.debug("indexFile={}", indexFile.getAbsolutePath());
+
+    if (indexFile.exists())
+    {
+      map(indexFile);
+
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+      {
+        throw new IOException("Not a uid index: "
+          + indexFile.getAbsolutePath());
+      }
+
+      capacity = buffer.getInt(HEADER_CAPACITY);
+      size = buffer.getInt(HEADER_SIZE_FIELD);
+      LOGGER.info("{} uids in index {}, capacity {}", size,
+        indexFile.getAbsolutePath(), capacity);
+    }
+    else
+    {
+      int newCapacity = Integer.highestOneBit(
+        Math.max(1024, Math.min(MAX_CAPACITY, initialCapacity)) * 2 - 1);
+      create(indexFile, newCapacity);
+      map(indexFile);
+      capacity = newCapacity;
+      size = 0;
+      LOGGER.info("new uid index {}, capacity {}",
+        indexFile.getAbsolutePath(), capacity);
+    }
+  }
+
+  private static void create(File file, int capacity) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      raf.setLength(0);
+      raf.setLength(HEADER_SIZE + (long) capacity * SLOT_SIZE);
+      raf.writeInt(MAGIC);
+      raf.writeInt(VERSION);
+      raf.writeInt(capacity);
+      raf.writeInt(0);
+    }
+  }
+
+  private void map(File file) throws IOException
+  {
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+    {
+      // the mapping stays valid after the channel is closed
+      buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+        raf.length());
+    }
+  }
+
+  /**
+   * @return the Moodle id of the user, -1 if unknown
+   */
+  public synchronized int getMoodleId(String username)
+  {
+    int slot = find(hash(username));
+    return (slot >= 0 && (flags(slot) & FLAG_MOODLE) != 0)
+      ? buffer.getInt(slot + OFFSET_MOODLE_ID) : -1;
+  }
+
+  public synchronized void putMoodleId(String username, int moodleId)
+    throws IOException
+  {
+    int slot = findOrInsert(hash(username));
+
+    if (buffer.getInt(slot + OFFSET_MOODLE_ID) != moodleId)
+    {
+      // a recreated Moodle account has never seen the synced data
+      buffer.put(slot + OFFSET_DIGEST, new byte[DIGEST_SIZE]);
+    }
+
+    buffer.putInt(slot + OFFSET_MOODLE_ID, moodleId);
+    buffer.putInt(slot + OFFSET_FLAGS, flags(slot) | FLAG_MOODLE);
+  }
+
+  public synchronized boolean hasFlag(String username, int flag)
+  {
+    int slot = find(hash(username));
+    return slot >= 0 && (flags(slot) & flag) != 0;
+  }
+
+  public synchronized void setFlag(String username, int flag)
+    throws IOException
+  {
+    int slot = findOrInsert(hash(username));
+    buffer.putInt(slot + OFFSET_FLAGS, flags(slot) | flag);
+  }
+
+  public synchronized void clearFlag(String username, int flag)
+  {
+    int slot = find(hash(username));
+
+    if (slot >= 0)
+    {
+      buffer.putInt(slot + OFFSET_FLAGS, flags(slot) & ~flag);
+    }
+  }
+
+  /**
+   * Clears the flag on all uids, e.g. before a complete rescan.
+   */
+  public synchronized void clearFlag(int flag)
+  {
+    for (int i = 0; i < capacity; i++)
+    {
+      int slot = HEADER_SIZE + i * SLOT_SIZE;
+
+      if (buffer.getLong(slot) != 0)
+      {
+        buffer.putInt(slot + OFFSET_FLAGS, flags(slot) & ~flag);
+      }
+    }
+  }
+
+  /**
+   * @return number of uids with the given flag
+   */
+  public synchronized int count(int flag)
+  {
+    int count = 0;
+
+    for (int i = 0; i < capacity; i++)
+    {
+      int slot = HEADER_SIZE + i * SLOT_SIZE;
+
+      if (buffer.getLong(slot) != 0 && (flags(slot) & flag) != 0)
+      {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  /**
+   * @return Moodle ids of the uids with flag set and withoutFlag not set
+   */
+  public synchronized List<Integer> getMoodleIds(int flag, int withoutFlag)
+  {
+    List<Integer> moodleIds = new ArrayList<>();
+
+    for (int i = 0; i < capacity; i++)
+    {
+      int slot = HEADER_SIZE + i * SLOT_SIZE;
+
+      if (buffer.getLong(slot) != 0 && (flags(slot) & flag) != 0
+        && (flags(slot) & withoutFlag) == 0)
+      {
+        moodleIds.add(buffer.getInt(slot + OFFSET_MOODLE_ID));
+      }
+    }
+
+    return moodleIds;
+  }
+
+  /**
+   * @param digest hex encoded digest, only the first 16 bytes are kept
+   *
+   * @return true if the stored digest matches
+   */
+  public synchronized boolean digestEquals(String username, String digest)
+  {
+    int slot = find(hash(username));
+
+    if (slot < 0 || digest == null)
+    {
+      return false;
+    }
+
+    byte[] stored = new byte[DIGEST_SIZE];
+    buffer.get(slot + OFFSET_DIGEST, stored);
+    return Arrays.equals(stored, truncate(digest));
+  }
+
+  public synchronized void putDigest(String username, String digest)
+    throws IOException
+  {
+    int slot = findOrInsert(hash(username));
+    buffer.put(slot + OFFSET_DIGEST, digest == null
+      ? new byte[DIGEST_SIZE] : truncate(digest));
+  }
+
+  /**
+   * time of the last complete LDAP uid scan, 0 if never
+   */
+  public synchronized long getLdapRefresh()
+  {
+    return buffer.getLong(HEADER_LDAP_REFRESH);
+  }
+
+  public synchronized void setLdapRefresh(long ldapRefresh)
+  {
+    buffer.putLong(HEADER_LDAP_REFRESH, ldapRefresh);
+  }
+
+  /**
+   * Forces all changes to disk.
+   */
+  public synchronized void force()
+  {
+    buffer.force();
+  }
+
+  @Override
+  public synchronized void close()
+  {
+    force();
+  }
+
+  private static byte[] truncate(String digest)
+  {
+    return Arrays.copyOf(HexFormat.of().parseHex(digest), DIGEST_SIZE);
+  }
+
+  private int flags(int slot)
+  {
+    return buffer.getInt(slot + OFFSET_FLAGS);
+  }
+
+  /**
+   * @return offset of the slot holding the hash, -1 if not found
+   */
+  private int find(long hash)
+  {
+    int index = (int) (hash & (capacity - 1));
+
+    while (true)
+    {
+      int slot = HEADER_SIZE + index * SLOT_SIZE;
+      long slotHash = buffer.getLong(slot);
+
+      if (slotHash == hash)
+      {
+        return slot;
+      }
+
+      if (slotHash == 0)
+      {
+        return -1;
+      }
+
+      index = (index + 1) & (capacity - 1);
+    }
+  }
+
+  private int findOrInsert(long hash) throws IOException
+  {
+    int slot = find(hash);
+
+    if (slot < 0)
+    {
+      if (size + 1 > capacity * MAX_LOAD_FACTOR)
+      {
+        grow();
+      }
+
+      slot = insert(buffer, capacity, hash);
+      size++;
+      buffer.putInt(HEADER_SIZE_FIELD, size);
+    }
+
+    return slot;
+  }
+
+  private static int insert(MappedByteBuffer target, int targetCapacity,
+    long hash)
+  {
+    int index = (int) (hash & (targetCapacity - 1));
+
+    while (true)
+    {
+      int slot = HEADER_SIZE + index * SLOT_SIZE;
+
+      if (target.getLong(slot) == 0)
+      {
+        target.putLong(slot, hash);
+        return slot;
+      }
+
+      index = (index + 1) & (targetCapacity - 1);
+    }
+  }
+
+  private void grow() throws IOException
+  {
+    if (capacity >= MAX_CAPACITY)
+    {
+      throw new IOException("uid index is full, capacity " + capacity);
+    }
+
+    int newCapacity = capacity * 2;
+    LOGGER.info("growing uid index from {} to {} slots", capacity,
+      newCapacity);
+
+    File tmpFile = new File(indexFile.getParentFile(),
+      indexFile.getName() + ".tmp");
+    create(tmpFile, newCapacity);
+
+    MappedByteBuffer oldBuffer = buffer;
+    map(tmpFile);
+    MappedByteBuffer newBuffer = buffer;
+    byte[] slotData = new byte[SLOT_SIZE - 8];
+
+    for (int i = 0; i < capacity; i++)
+    {
+      int slot = HEADER_SIZE + i * SLOT_SIZE;
+      long hash = oldBuffer.getLong(slot);
+
+      if (hash != 0)
+      {
+        int newSlot = insert(newBuffer, newCapacity, hash);
+        oldBuffer.get(slot + 8, slotData);
+        newBuffer.put(newSlot + 8, slotData);
+      }
+    }
+
+    newBuffer.putInt(HEADER_SIZE_FIELD, size);
+    newBuffer.putLong(HEADER_LDAP_REFRESH,
+      oldBuffer.getLong(HEADER_LDAP_REFRESH));
+    newBuffer.force();
+
+    Files.move(tmpFile.toPath(), indexFile.toPath(),
+      StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    capacity = newCapacity;
+  }
+
+  /**
+   * 64 bit FNV-1a of the canonical username, finished with the murmur3
+   * mixer for a better spread of the low bits
+   */
+  static long hash(String username)
+  {
+    byte[] data = username.trim().toLowerCase(Locale.ROOT)
+      .getBytes(StandardCharsets.UTF_8);
+    long hash = 0xcbf29ce484222325l;
+
+    for (byte b : data)
+    {
+      hash ^= (b & 0xff);
+      hash *= 0x100000001b3l;
+    }
+
+    hash ^= (hash >>> 33);
+    hash *= 0xff51afd7ed558ccdl;
+    hash ^= (hash >>> 33);
+    hash *= 0xc4ceb9fe1a85ec53l;
+    hash ^= (hash >>> 33);
+
+    return hash == 0 ? 1 : hash;
+  }
+
+  private final File indexFile;
+
+  private MappedByteBuffer buffer;
+
+  @Getter
+  private int capacity;
+
+  @Getter
+  private int size;
+}
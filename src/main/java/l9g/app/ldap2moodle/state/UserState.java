@@ -0,0 +1,61 @@
+/*
+ * Copyright 2024 Thorsten Ludewig (t.ludewig@gmail.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package l9g.app.ldap2moodle.state;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Sync state of a single user as recorded by the SyncStateStore.
+ *
+ * @author Thorsten Ludewig (t.ludewig@gmail.com)
+ */
+@Getter
+@ToString
+@AllArgsConstructor
+public class UserState
+{
+  /**
+   * lowercased LDAP uid, Moodle username
+   */
+  private final String uid;
+
+  /**
+   * Moodle user id, -1 if unknown
+   */
+  private final int moodleId;
+
+  /**
+   * digest of the last mapped MoodleUser payload sent to Moodle
+   */
+  private final String payloadDigest;
+
+  /**
+   * digest of the synced LDAP attributes and the mapping script
+   */
+  private final String ldapDigest;
+
+  /**
+   * modifyTimestamp of the LDAP entry (milliseconds), 0 if unknown
+   */
+  private final long lastModifyTimestamp;
+
+  /**
+   * time of the last successful sync (milliseconds)
+   */
+  private final long lastSyncTime;
+}